@@ -30,8 +30,8 @@ public class ActivityMain extends AppCompatActivity
         setContentView(R.layout.activity_main);
 
         RecyclerView rv = findViewById(R.id.rv);
-        rv.getRecycledViewPool().setMaxRecycledViews(0, 20);
-        lm = ((FlowLayoutManager) rv.getLayoutManager()).lookBack(FlowLayoutManager.LookBack.EXACT);
+        lm = ((FlowLayoutManager) rv.getLayoutManager()).lookBack(FlowLayoutManager.LookBack.EXACT)
+            .autoSizePool(true).prewarmPool(true);
         Adapter adapter = new Adapter(lm, Arrays.asList(getResources().getStringArray(R.array.Countries)));
         rv.setAdapter(adapter);
 
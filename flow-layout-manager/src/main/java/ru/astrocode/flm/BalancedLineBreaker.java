@@ -0,0 +1,79 @@
+package ru.astrocode.flm;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Px;
+
+/**
+ * Breaks lines minimizing raggedness, i. e. sum of squared free space, within a window of lines.
+ * The last line of the list counts too, so it doesn't end up with a single orphan item.
+ * <p>
+ * Work per line is capped at {@link #BUDGET_PER_ITEM} steps per item in the window:
+ * when the cap is hit, greedy breaking is used for this line.
+ * Not thread-safe, don't share an instance between a layout manager and a background {@link FlowCalculator}.
+ */
+public final class BalancedLineBreaker implements FlowLayoutManager.LineBreaker {
+
+    static final int BUDGET_PER_ITEM = 16;
+
+    private final int mLookahead;
+    private long[] mCosts = new long[32];
+    private int[] mBreaks = new int[32];
+    int mSteps; // DP steps taken by the last call
+
+    public BalancedLineBreaker() {
+        this(4);
+    }
+
+    /**
+     * @param lookahead number of lines to balance, as wrapped greedily
+     */
+    public BalancedLineBreaker(@IntRange(from = 2L) int lookahead) {
+        if (lookahead < 2) throw new IllegalArgumentException("Inappropriate field value!");
+        mLookahead = lookahead;
+    }
+
+    @Override public int lookahead() {
+        return mLookahead;
+    }
+
+    @Override public int breakLine(@NonNull int[] sizes, int from, int to, boolean last,
+                                   @Px int lineSize, @Px int spacing, int maxItems) {
+        int n = to - from;
+        mSteps = 0;
+        if (n <= 1) return n;
+        if (mCosts.length <= n) {
+            mCosts = new long[n + 1];
+            mBreaks = new int[n + 1];
+        }
+        long[] costs = mCosts; // min cost of lines ending before item i
+        int[] breaks = mBreaks; // start of the last line ending before item i
+        costs[0] = 0;
+        int budget = BUDGET_PER_ITEM * n;
+        for (int i = 1; i <= n; i++) {
+            costs[i] = Long.MAX_VALUE;
+            // the line is [j, i), the last line of the window is free if the list goes on
+            boolean free = i == n && !last;
+            int currentLineSize = -spacing;
+            for (int j = i - 1; j >= 0 && i - j <= maxItems; j--) {
+                currentLineSize += spacing + sizes[from + j];
+                if (i - j > 1 && currentLineSize > lineSize) break;
+                if (--budget < 0) {
+                    mSteps = BUDGET_PER_ITEM * n;
+                    return FlowLayoutManager.LineBreaker.GREEDY.breakLine(sizes, from, to, last, lineSize, spacing, maxItems);
+                }
+                if (costs[j] == Long.MAX_VALUE) continue;
+                long slack = free ? 0 : Math.max(0, lineSize - currentLineSize);
+                long cost = costs[j] + slack * slack;
+                if (cost < costs[i]) {
+                    costs[i] = cost;
+                    breaks[i] = j;
+                }
+            }
+        }
+        mSteps = BUDGET_PER_ITEM * n - budget;
+        int i = n;
+        while (breaks[i] != 0) i = breaks[i];
+        return i;
+    }
+}
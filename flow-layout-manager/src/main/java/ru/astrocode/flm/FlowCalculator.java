@@ -0,0 +1,212 @@
+package ru.astrocode.flm;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.Px;
+import java.util.Arrays;
+
+/**
+ * Predicts line count and size of a flow for known item sizes, without views or a layout manager.
+ * Wraps items by the same rules as {@link FlowLayoutManager}: {@code maxItemsInLine}, spacing,
+ * {@code maxLines}, and room reserved for the ellipsis item in the last line.
+ * Sizes are decorated, i. e. include margins and item decorations; paddings are not included.
+ * <p>
+ * Doesn't allocate, except for growing per-line results. Not thread-safe, but an instance can be reused,
+ * e. g. one per background thread:
+ * <pre>
+ * calc.calculate(chipWidths, chipHeights, chipCount, rowWidth);
+ * int rowHeight = calc.totalExtent() + paddingTop + paddingBottom;
+ * </pre>
+ * Per-line results let a dense flow be shown as rows, one adapter item per line laid out by any layout manager,
+ * when too many item views would be attached otherwise: items of row {@code i} are
+ * {@code lineStart(i)} until {@code lineStart(i + 1)}, or {@link #laidOutCount()} for the last row.
+ * {@link FlowRowAdapter} does this for an existing adapter.
+ */
+public final class FlowCalculator {
+
+    private final static String ERROR_BAD_ARGUMENT = "Inappropriate field value!";
+
+    private int mMaxItemsInLine = Integer.MAX_VALUE;
+    private int mMaxLines = Integer.MAX_VALUE;
+    private boolean mEllipsize;
+    private int mEllipsisSizeInLine, mEllipsisSizeAcross;
+    private int mSpacingBetweenItems, mSpacingBetweenLines;
+    private FlowLayoutManager.LineBreaker mLineBreaker = FlowLayoutManager.LineBreaker.GREEDY;
+    private FlowLayoutManager.ExplicitBreaks mExplicitBreaks;
+
+    private int mLineCount, mTotalExtent, mEllipsisCount, mLaidOutCount;
+    private int[] mLineStarts = new int[16], mLineExtents = new int[16];
+
+    public FlowCalculator() {
+    }
+
+    /**
+     * Create a calculator configured like the given layout manager.
+     * The ellipsis size must be set separately, see {@link #maxLines(int, boolean, int, int)}.
+     */
+    public FlowCalculator(@NonNull FlowLayoutManager lm) {
+        mMaxItemsInLine = lm.maxItemsInLine();
+        mMaxLines = lm.maxLines();
+        mEllipsize = lm.ellipsize();
+        mSpacingBetweenItems = lm.spacingBetweenItems();
+        mSpacingBetweenLines = lm.spacingBetweenLines();
+        mLineBreaker = lm.lineBreaker();
+        mExplicitBreaks = lm.explicitBreaks();
+    }
+
+    public FlowCalculator maxItemsInLine(int maxItemsInLine) {
+        if (maxItemsInLine <= 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        mMaxItemsInLine = maxItemsInLine;
+        return this;
+    }
+
+    /**
+     * @param maxLines       max line count
+     * @param ellipsize      reserve room for “ellipsis” item in the last line
+     * @param sizeInLine     decorated size of “ellipsis” item along the line
+     * @param sizeAcross     decorated size of “ellipsis” item across the line
+     */
+    public FlowCalculator maxLines(int maxLines, boolean ellipsize, @Px int sizeInLine, @Px int sizeAcross) {
+        if (maxLines <= 0 || sizeInLine < 0 || sizeAcross < 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        mMaxLines = maxLines;
+        mEllipsize = ellipsize;
+        mEllipsisSizeInLine = sizeInLine;
+        mEllipsisSizeAcross = sizeAcross;
+        return this;
+    }
+
+    public FlowCalculator spacing(@Px int betweenItems, @Px int betweenLines) {
+        if (betweenItems < 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        if (betweenLines < 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        mSpacingBetweenItems = betweenItems;
+        mSpacingBetweenLines = betweenLines;
+        return this;
+    }
+
+    /**
+     * @see FlowLayoutManager#lineBreaker(FlowLayoutManager.LineBreaker)
+     */
+    public FlowCalculator lineBreaker(@NonNull FlowLayoutManager.LineBreaker breaker) {
+        mLineBreaker = breaker;
+        return this;
+    }
+
+    /**
+     * @see FlowLayoutManager#explicitBreaks(FlowLayoutManager.ExplicitBreaks)
+     */
+    public FlowCalculator explicitBreaks(@Nullable FlowLayoutManager.ExplicitBreaks breaks) {
+        mExplicitBreaks = breaks;
+        return this;
+    }
+
+    /**
+     * Wrap items into lines.
+     * @param sizesInLine  item sizes along the line (widths for {@code VERTICAL} orientation)
+     * @param sizesAcross  item sizes across the line (heights for {@code VERTICAL} orientation)
+     * @param count        number of items to take from the arrays
+     * @param lineSize     available line size, without paddings
+     * @return this, to read results from
+     */
+    public FlowCalculator calculate(
+        @NonNull int[] sizesInLine, @NonNull int[] sizesAcross, @IntRange(from = 0L) int count, @Px int lineSize) {
+        if (count < 0 || count > sizesInLine.length || count > sizesAcross.length)
+            throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+
+        int lines = 0, total = -mSpacingBetweenLines, index = 0;
+        mEllipsisCount = 0;
+        while (index < count && lines < mMaxLines) {
+            int lineStart = index;
+            int currentLineSize = 0;
+            int limit = lines + 1 == mMaxLines ? mMaxItemsInLine : breakLine(sizesInLine, index, count, lineSize);
+            while (index - lineStart != limit && index < count && (index == lineStart || !isLineStart(index)) &&
+                FlowLayoutManager.fits(currentLineSize, sizesInLine[index], lineSize)) {
+                currentLineSize += sizesInLine[index++] + mSpacingBetweenItems;
+            }
+
+            int extent = 0;
+            if (++lines == mMaxLines && index < count) {
+                mEllipsisCount = count - index;
+                if (mEllipsize) {
+                    // like the layout manager does, drop items until the ellipsis fits
+                    while (index > lineStart && (index - lineStart + 1 > mMaxItemsInLine ||
+                        currentLineSize + mEllipsisSizeInLine > lineSize)) {
+                        currentLineSize -= sizesInLine[--index] + mSpacingBetweenItems;
+                        mEllipsisCount++;
+                    }
+                    extent = mEllipsisSizeAcross;
+                }
+            }
+            for (int i = lineStart; i < index; i++) extent = Math.max(extent, sizesAcross[i]);
+            total += mSpacingBetweenLines + extent;
+            if (lines > mLineStarts.length) {
+                mLineStarts = Arrays.copyOf(mLineStarts, 2 * mLineStarts.length);
+                mLineExtents = Arrays.copyOf(mLineExtents, 2 * mLineExtents.length);
+            }
+            mLineStarts[lines - 1] = lineStart;
+            mLineExtents[lines - 1] = extent;
+        }
+
+        mLineCount = lines;
+        mTotalExtent = Math.max(0, total);
+        mLaidOutCount = index;
+        return this;
+    }
+
+    /** Like the layout manager, pass items of {@link FlowLayoutManager.LineBreaker#lookahead()} lines to the line breaker. */
+    private int breakLine(int[] sizes, int from, int count, int lineSize) {
+        if (mLineBreaker == FlowLayoutManager.LineBreaker.GREEDY) return mMaxItemsInLine;
+        int to = from, lines = 0, currentLineSize = 0, inLine = 0;
+        boolean last = true;
+        for (int lookahead = mLineBreaker.lookahead(); to < count; to++) {
+            if (to != from && isLineStart(to)) break;
+            if (inLine == mMaxItemsInLine || !FlowLayoutManager.fits(currentLineSize, sizes[to], lineSize)) {
+                if (++lines == lookahead) {
+                    last = false;
+                    break;
+                }
+                currentLineSize = inLine = 0;
+            }
+            currentLineSize += sizes[to] + mSpacingBetweenItems;
+            inLine++;
+        }
+        int items = mLineBreaker.breakLine(sizes, from, to, last, lineSize, mSpacingBetweenItems, mMaxItemsInLine);
+        return Math.min(mMaxItemsInLine, Math.max(1, items));
+    }
+
+    private boolean isLineStart(int position) {
+        return mExplicitBreaks != null && mExplicitBreaks.isLineStart(position);
+    }
+
+    /** @return number of lines */
+    public int lineCount() {
+        return mLineCount;
+    }
+
+    /** @return index of the first item of the {@param line} */
+    public int lineStart(@IntRange(from = 0L) int line) {
+        if (line < 0 || line >= mLineCount) throw new IndexOutOfBoundsException();
+        return mLineStarts[line];
+    }
+
+    /** @return size of the {@param line} across it, i. e. of its biggest item or the ellipsis */
+    @Px public int lineExtent(@IntRange(from = 0L) int line) {
+        if (line < 0 || line >= mLineCount) throw new IndexOutOfBoundsException();
+        return mLineExtents[line];
+    }
+
+    /** @return size of all lines with spacing between them, without paddings */
+    @Px public int totalExtent() {
+        return mTotalExtent;
+    }
+
+    /** @return number of items which didn't fit into {@code maxLines}, i. e. hidden behind the ellipsis */
+    public int ellipsisCount() {
+        return mEllipsisCount;
+    }
+
+    /** @return number of items which were laid out, not counting the ellipsis */
+    public int laidOutCount() {
+        return mLaidOutCount;
+    }
+}
@@ -0,0 +1,111 @@
+package ru.astrocode.flm;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.RecyclerView;
+import java.util.List;
+import java.util.Locale;
+
+import static androidx.recyclerview.widget.RecyclerView.VERTICAL;
+
+/**
+ * Draws bounds of {@link FlowLayoutManager} lines over items, coloured by how each line was built:
+ * forward, backward, by lookBack, reattached without measuring, or ellipsized.
+ * Each line is annotated with its first adapter position, numbers of measured and bound views, and build time.
+ * A lookBack pass is accounted to the line it was made for, other lines of the pass show zero cost.
+ * The start of the first line is marked with a dashed edge.
+ * <pre>
+ * new FlowDebugDecoration().attachToRecyclerView(recyclerView);
+ * </pre>
+ * Stats are recorded only while the decoration is attached, the layout manager doesn't pay for them otherwise.
+ * Bound views are those not taken from scrap, so views taken from the view cache are counted, too.
+ */
+public class FlowDebugDecoration extends RecyclerView.ItemDecoration {
+
+    private static final int[] COLORS = {
+        0x3300C853, // forward
+        0x332962FF, // backward
+        0x33FFAB00, // lookBack
+        0x33AAAAAA, // reattached
+    };
+    private static final int COLOR_ELLIPSIZED = 0x33D50000;
+    private static final int COLOR_FIRST_LINE_START = 0xFFD50000;
+
+    private final Paint mFill = new Paint();
+    private final Paint mStroke = new Paint();
+    private final Paint mText = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private RecyclerView mRecyclerView;
+    private FlowLayoutManager mLayoutManager;
+
+    public FlowDebugDecoration() {
+        mFill.setStyle(Paint.Style.FILL);
+        mStroke.setStyle(Paint.Style.STROKE);
+        mText.setColor(0xFF000000);
+    }
+
+    /**
+     * Start drawing over {@param recyclerView} and recording stats of lines built from now on,
+     * or stop it if null. The layout manager must be set already.
+     */
+    public void attachToRecyclerView(@Nullable RecyclerView recyclerView) {
+        if (mRecyclerView == recyclerView) return;
+        if (mRecyclerView != null) {
+            mRecyclerView.removeItemDecoration(this);
+            if (mLayoutManager != null) mLayoutManager.debug(false);
+            mLayoutManager = null;
+        }
+        mRecyclerView = recyclerView;
+        if (recyclerView != null) {
+            RecyclerView.LayoutManager lm = recyclerView.getLayoutManager();
+            if (lm instanceof FlowLayoutManager) {
+                mLayoutManager = (FlowLayoutManager) lm;
+                mLayoutManager.debug(true);
+            }
+            float density = recyclerView.getContext().getResources().getDisplayMetrics().density;
+            mStroke.setStrokeWidth(density);
+            mText.setTextSize(10 * density);
+            recyclerView.addItemDecoration(this);
+        }
+    }
+
+    @Override public void onDrawOver(@NonNull Canvas c, @NonNull RecyclerView parent, @NonNull RecyclerView.State state) {
+        FlowLayoutManager lm = mLayoutManager;
+        if (lm == null || parent.getLayoutManager() != lm) return;
+
+        boolean vertical = lm.orientation() == VERTICAL;
+        int from = vertical ? parent.getPaddingLeft() : parent.getPaddingTop();
+        int to = vertical ? parent.getWidth() - parent.getPaddingRight() : parent.getHeight() - parent.getPaddingBottom();
+        float textSize = mText.getTextSize();
+
+        List<FlowLayoutManager.Line> lines = lm.attachedLines();
+        for (int l = 0, size = lines.size(); l < size; l++) {
+            FlowLayoutManager.Line line = lines.get(l);
+            int color = line.mEllipsized ? COLOR_ELLIPSIZED : COLORS[line.mOrigin];
+            mFill.setColor(color);
+            mStroke.setColor(color | 0xFF000000);
+            int start = line.mStartValueOfTheHighestItem, end = line.mEndValueOfTheHighestItem;
+            if (vertical) {
+                c.drawRect(from, start, to, end, mFill);
+                c.drawRect(from, start, to, end, mStroke);
+            } else {
+                c.drawRect(start, from, end, to, mFill);
+                c.drawRect(start, from, end, to, mStroke);
+            }
+
+            String label = String.format(Locale.US, "#%d+%d m%d b%d %.2fms",
+                line.mStartAdapterIndex, line.mItemsCount, line.mMeasures, line.mBinds, line.mBuildNanos / 1e6);
+            if (vertical) c.drawText(label, from + textSize / 4, start + textSize, mText);
+            else c.drawText(label, start + textSize / 4, from + textSize * (1 + l % 2), mText); // lines are narrow, stagger
+        }
+
+        mStroke.setColor(COLOR_FIRST_LINE_START);
+        int first = lm.firstLineStartPosition();
+        float dash = textSize / 2;
+        for (float d = from; d < to; d += 2 * dash) {
+            if (vertical) c.drawLine(d, first, Math.min(d + dash, to), first, mStroke);
+            else c.drawLine(first, d, first, Math.min(d + dash, to), mStroke);
+        }
+    }
+}
@@ -2,12 +2,18 @@ package ru.astrocode.flm;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.AttributeSet;
+import android.util.SparseIntArray;
 import android.view.Gravity;
 import android.view.View;
 import android.view.View.MeasureSpec;
@@ -15,8 +21,10 @@ import android.view.ViewGroup;
 import androidx.annotation.IntDef;
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.Px;
 import androidx.core.view.GravityCompat;
+import androidx.recyclerview.widget.ConcatAdapter;
 import androidx.recyclerview.widget.LinearSmoothScroller;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.recyclerview.widget.RecyclerView.Orientation;
@@ -26,8 +34,10 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import static androidx.recyclerview.widget.RecyclerView.HORIZONTAL;
 import static androidx.recyclerview.widget.RecyclerView.VERTICAL;
@@ -43,6 +53,7 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
 
     private final static String TAG_FIRST_ITEM_ADAPTER_INDEX = "TAG_FIRST_ITEM_ADAPTER_INDEX";
     private final static String TAG_FIRST_LINE_START_POSITION = "TAG_FIRST_LINE_START_POSITION";
+    private final static String TAG_PINNED_TO_END = "TAG_PINNED_TO_END";
 
     private final static String ERROR_UNKNOWN_ORIENTATION = "Unknown orientation!";
     private final static String ERROR_BAD_ARGUMENT = "Inappropriate field value!";
@@ -54,7 +65,17 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
     private int mMaxLines = Integer.MAX_VALUE;
     private boolean mEllipsize = false;
     private int mEllipsisCount = -1;
+    private int mEllipsisGeneration; // bumped when the adapter rebinds the ellipsis item
+    private final EllipsisRecyclerListener mEllipsisRecyclerListener = new EllipsisRecyclerListener();
+    private boolean mEllipsisRebindPending;
     private int mLookBack = LookBack.NONE;
+    private long mLookBackBudgetNanos = 4_000_000L;
+    private final LookBackStats mLookBackStats = new LookBackStats();
+    private int mLastLookBackDepth;
+    private LookBackListener mLookBackListener;
+    private int mDeferMeasureVelocity = 0;
+    private boolean mStackFromEnd;
+    private boolean mPinnedToEnd;
 
     private int mSpacingBetweenItems;
     private int mSpacingBetweenLines;
@@ -65,6 +86,72 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
 
     private int mFirstItemAdapterIndex;
     private int mFirstLineStartPosition;
+    private long mFirstItemId = RecyclerView.NO_ID;
+
+    private final SizeCache mSizeCache = new SizeCache();
+    private final ArrayList<LineBreaks> mLineBreaks = new ArrayList<>(LineBreaks.MAX_LAYOUTS); // most recent first
+    private int mScrollState = RecyclerView.SCROLL_STATE_IDLE;
+    private long mLastScrollTime;
+    private float mScrollVelocity;
+    private boolean mHasEstimatedViews;
+    private int mKeepLines = -1;
+    private boolean mLinesDirty;
+    private final LineBreaks mReusableLines = new LineBreaks();
+    private SizeProvider mSizeProvider;
+    private Executor mLineTableExecutor;
+    private LineTable mLineTable; // matches current config and items, or null
+    private LineTable.Builder mLineTableBuilder;
+    private LineTable mStaleLineTable; // leading lines of it are still valid
+    private int mStaleLines;
+    private int mStaleTailFrom = Integer.MAX_VALUE, mStaleTailShift; // its lines from the old position of this one are still valid
+    private boolean mAutoSizePool;
+    private boolean mPrewarmPool;
+    private final SparseIntArray mMaxViewsByType = new SparseIntArray();
+    private final SparseIntArray mViewsByType = new SparseIntArray();
+    private final SparseIntArray mPoolCapacities = new SparseIntArray(); // applied or detected
+    private PoolWarmer mPoolWarmer;
+    private FlowSizeStore mSizeStore;
+    private ContentKeys mContentKeys;
+    private long mStoreSalt; // 0 until computed for the current layout
+    private final SizeChecker mSizeChecker = new SizeChecker(this);
+    private boolean mSizeCheckPending;
+    private final Rect mTmpRect = new Rect();
+    private final KnownLine mKnownLine = new KnownLine();
+    private FlowStateStore mStateStore;
+    private long mStateKey = RecyclerView.NO_ID;
+    private boolean mStateSaved; // nothing changed since the state was saved
+    private LineBreaker mLineBreaker = LineBreaker.GREEDY;
+    private ExplicitBreaks mExplicitBreaks;
+    private Placeholders mPlaceholders;
+    private int mPlaceholderWidth = -1, mPlaceholderHeight = -1;
+    private PreloadListener mPreloadListener;
+    private int mPreloadLines;
+    private int mPreloadedFrom, mPreloadedTo; // announced range
+    private int mPreloadEdge = Integer.MIN_VALUE; // position after the last line or ~position of the first one
+    private int[] mBreakSizes = new int[32];
+    private boolean mDebug; // FlowDebugDecoration is attached
+    private Object mStaticKey; // content key in static mode, or null
+    private Object mLaidOutStaticKey; // and what the last layout depended on
+    private int mLaidOutLineSize, mLaidOutPaddingLeft, mLaidOutPaddingTop, mLaidOutItemCount, mLaidOutChildCount;
+    private long mLayoutBudgetNanos;
+    private int mReorderLineSize = -1; // line size when reorder mode started, or -1
+    private Sections mSections;
+    // configuration for the line being built: of its section, or the global one
+    private int mCurrentSpacing, mCurrentMaxItems, mCurrentMaxLines;
+    private boolean mCurrentEllipsize;
+    private int mCurrentSectionEnd = Integer.MAX_VALUE, mCurrentContentEnd = Integer.MAX_VALUE;
+    private int mFirstLineInSection = -1; // index of the first line within its section, or -1 if unknown
+    private final SparseIntArray mSectionEllipsisCounts = new SparseIntArray(); // by ellipsis positions
+    private int mBindingSectionEllipsis = -1, mBindingSectionEllipsisCount; // position and count while laying it out
+    private boolean mSectionEllipsisAsked; // whether the adapter asked for the count while binding it
+    private boolean mLayoutContinuationPosted;
+    private final Runnable mContinueLayout = new Runnable() {
+        @Override public void run() {
+            mLayoutContinuationPosted = false;
+            if (!isViewportFilled()) requestLayout(); // unless scrolling did it
+        }
+    };
+    private int mMeasureCount, mBindCount;
 
     // this crap is sorted, touch with care
     private static final int[] ATTRS = {
@@ -125,7 +212,18 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
     }
 
     @Override public RecyclerView.LayoutParams generateDefaultLayoutParams() {
-        return new RecyclerView.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT);
+        return new LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT);
+    }
+    @Override public RecyclerView.LayoutParams generateLayoutParams(Context c, AttributeSet attrs) {
+        return new LayoutParams(c, attrs);
+    }
+    @Override public RecyclerView.LayoutParams generateLayoutParams(ViewGroup.LayoutParams lp) {
+        return lp instanceof ViewGroup.MarginLayoutParams
+            ? new LayoutParams((ViewGroup.MarginLayoutParams) lp)
+            : new LayoutParams(lp);
+    }
+    @Override public boolean checkLayoutParams(RecyclerView.LayoutParams lp) {
+        return lp instanceof LayoutParams;
     }
 
     @Override public boolean isAutoMeasureEnabled() {
@@ -134,23 +232,114 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
 
     @Override public void onLayoutChildren(RecyclerView.Recycler recycler, RecyclerView.State state) {
         Trace.beginSection("FLM#onLayoutChildren");
-        Line currentLine = null;
+        if (mStaticKey != null ? isStaticLayoutValid(state) : relayoutDirtyChildren(recycler, state)) {
+            Trace.endSection(); // children stay where they are, or only the dirty ones were laid out again
+            return;
+        }
+        if (mStaticKey != null) {
+            mFirstItemAdapterIndex = 0;
+            mFirstLineStartPosition = -1;
+        }
+
+        boolean reflow = anchorFirstLine(state);
+        if (mStackFromEnd && mPinnedToEnd && mStaticKey == null && mMaxLines == Integer.MAX_VALUE && mLayoutManagerHelper.isFinite()) {
+            layoutFromEnd(recycler);
+        } else {
+            int keep = reflow || state.isPreLayout() ? 0 : keptLines();
+            if (keep > 0) {
+                layoutLinesToEnd(keepLines(keep, recycler), null, recycler, state);
+            } else {
+                LineBreaks reusable = !mLinesDirty && !reflow && !state.isPreLayout() ? reusableLines() : null;
+                mHasEstimatedViews = false;
+                detachAndScrapAttachedViews(recycler);
+                mCurrentLines.clear();
+                layoutLinesToEnd(null, reusable, recycler, state);
+            }
+        }
+        Trace.endSection();
+    }
 
+    /**
+     * Find the first item and the start of the first line for a full layout: by the anchor item id,
+     * by the line table, or by the section start. Selects line breaks for the current config.
+     * @return whether lines are wrapped differently now, i. e. the old ones can't be reused
+     */
+    private boolean anchorFirstLine(RecyclerView.State state) {
         if (mFirstLineStartPosition == -1) {
             mFirstLineStartPosition = mLayoutManagerHelper.getStartPadding();
         }
 
-        int topOrLeft = mFirstLineStartPosition;
+        if (!state.isPreLayout() && mStaticKey == null && mReorderLineSize < 0) findAnchorById();
+        if (mFirstItemAdapterIndex >= contentItemCount()) {
+            mFirstItemAdapterIndex = Math.max(0, contentItemCount() - 1);
+        }
 
-        detachAndScrapAttachedViews(recycler);
-        mCurrentLines.clear();
+        mSizeCache.ensureLineSize(mLayoutManagerHelper.getLineSize());
+        mStoreSalt = 0L;
+        mLookBackStats.newFrame();
+        boolean reflow = selectLineBreaks();
+        if (reflow) {
+            mFirstLineStartPosition = reflowAnchor(mFirstLineStartPosition);
+        }
+        LineTable table = lineTable(state);
+        if (table != null && mFirstItemAdapterIndex < table.itemCount()) {
+            // the same line regardless of how we got here
+            mFirstItemAdapterIndex = table.start(table.line(mFirstItemAdapterIndex));
+        }
+        if (reflow || state.isPreLayout()) mFirstLineInSection = -1;
+        if (mFirstLineInSection < 0 && isCollapsible(mFirstItemAdapterIndex)) {
+            // don't know which of its lines this is, wrap from the section start
+            mFirstItemAdapterIndex = mSections.sectionStart(mFirstItemAdapterIndex);
+            mFirstLineInSection = 0;
+        }
+        return reflow;
+    }
+
+    /**
+     * maxLines changed, lines before the last one are still valid: keep {@param keep} lines and scrap the rest.
+     * @return the last kept line
+     */
+    private Line keepLines(int keep, RecyclerView.Recycler recycler) {
+        Trace.beginSection("FLM#onLayoutChildren:keep");
+        int keptViews = 0;
+        for (int l = 0; l < keep; l++) keptViews += mCurrentLines.get(l).mItemsCount;
+        for (int v = getChildCount() - 1; v >= keptViews; v--) detachAndScrapViewAt(v, recycler);
+        mCurrentLines.subList(keep, mCurrentLines.size()).clear();
+        Trace.endSection();
+        return mCurrentLines.get(keep - 1);
+    }
 
-        for (int i = mFirstItemAdapterIndex;
-             i < contentItemCount() && mCurrentLines.size() < mMaxLines;
-             i += currentLine.mItemsCount) {
+    /**
+     * Add lines after {@param currentLine}, or from the first item if it is null, until the viewport is filled,
+     * reattaching {@param reusable} lines without measuring. Within the layout budget, the rest is posted.
+     */
+    private void layoutLinesToEnd(
+        @Nullable Line currentLine, @Nullable LineBreaks reusable, RecyclerView.Recycler recycler, RecyclerView.State state) {
+        int i = mFirstItemAdapterIndex;
+        int topOrLeft = mFirstLineStartPosition;
+        if (currentLine != null) {
+            i = currentLine.end();
+            topOrLeft = mSpacingBetweenLines + currentLine.mEndValueOfTheHighestItem;
+            if (mLayoutManagerHelper.isFinite() &&
+                currentLine.mEndValueOfTheHighestItem > mLayoutManagerHelper.getEnd()) {
+                i = Integer.MAX_VALUE;
+            }
+        }
 
-            currentLine = addLineToEnd(i, topOrLeft, recycler, mCurrentLines.size() + 1 == mMaxLines);
+        long deadline = mLayoutBudgetNanos > 0 && !state.isPreLayout() && mStaticKey == null &&
+            mMaxLines == Integer.MAX_VALUE && mLayoutManagerHelper.getModeInScrollDirection() == MeasureSpec.EXACTLY
+            ? System.nanoTime() + mLayoutBudgetNanos : Long.MAX_VALUE;
+        boolean partial = false;
+        for (; i < contentItemCount() && mCurrentLines.size() < mMaxLines; i = currentLine.end()) {
+
+            boolean lastLine = mCurrentLines.size() + 1 == mMaxLines;
+            int reuse = reusable == null || lastLine ? -1 : reusable.find(i);
+            if (reuse < 0 || reusable.start(reuse) != i ||
+                (currentLine = reattachLine(i, reusable.count(reuse), topOrLeft, recycler)) == null) {
+                currentLine = addLineToEnd(i, topOrLeft, recycler, lastLine);
+            }
             mCurrentLines.add(currentLine);
+            remember(currentLine);
 
             topOrLeft = mSpacingBetweenLines + currentLine.mEndValueOfTheHighestItem;
 
@@ -158,9 +347,19 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
                 currentLine.mEndValueOfTheHighestItem > mLayoutManagerHelper.getEnd()) {
                 break;
             }
+            if (deadline != Long.MAX_VALUE && System.nanoTime() > deadline &&
+                i + currentLine.mItemsCount < contentItemCount()) {
+                // lines laid out so far will be reattached without measuring, and the next ones added, next frame
+                partial = true;
+                if (!mLayoutContinuationPosted) {
+                    mLayoutContinuationPosted = true;
+                    postOnAnimation(mContinueLayout);
+                }
+                break;
+            }
         }
 
-        if (mFirstItemAdapterIndex > 0 && currentLine != null) {
+        if (mFirstItemAdapterIndex > 0 && currentLine != null && !partial) {
             int availableOffset =
                 currentLine.mEndValueOfTheHighestItem - mLayoutManagerHelper.getEnd() + mLayoutManagerHelper.getEndPadding();
 
@@ -169,19 +368,633 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
                 else scrollHorizontallyBy(availableOffset, recycler, state);
             }
         }
+        if (mStackFromEnd) mPinnedToEnd = isAtEnd();
+        rememberFirstItemId();
+        if (!state.isPreLayout()) {
+            mLaidOutStaticKey = mStaticKey;
+            mLaidOutLineSize = mLayoutManagerHelper.getLineSize();
+            mLaidOutPaddingLeft = getPaddingLeft();
+            mLaidOutPaddingTop = getPaddingTop();
+            mLaidOutItemCount = getItemCount();
+            mLaidOutChildCount = getChildCount();
+        }
+    }
+
+    /**
+     * When only some attached children requested layout, e. g. an image was loaded into a chip, measure just them.
+     * Children which kept their size are laid out in place. Lines which changed size are laid out again,
+     * and the following lines are moved. If an item moves to another line, lines are wrapped again from there
+     * until they line up with the old ones, see {@link #rewrapLines(int, int, RecyclerView.Recycler)}.
+     * With sections, FILL gravity or a non-greedy breaker, and when lines move with a line table or limited lines,
+     * the usual layout runs instead: it reattaches unchanged lines without measuring.
+     * @return whether the layout is done
+     */
+    private boolean relayoutDirtyChildren(RecyclerView.Recycler recycler, RecyclerView.State state) {
+        int childCount = getChildCount(), lines = mCurrentLines.size();
+        if (state.isPreLayout() || mLinesDirty || mKeepLines >= 0 || mHasEstimatedViews || mEllipsisRebindPending ||
+            mSections != null || mLineBreaker != LineBreaker.GREEDY || mLayoutManagerHelper.shouldFillLine() ||
+            (mStackFromEnd && mPinnedToEnd) || childCount == 0 || lines == 0 ||
+            mLaidOutLineSize != mLayoutManagerHelper.getLineSize() || mLaidOutPaddingLeft != getPaddingLeft() ||
+            mLaidOutPaddingTop != getPaddingTop() || mLaidOutItemCount != getItemCount() ||
+            mFirstItemAdapterIndex != mCurrentLines.get(0).mStartAdapterIndex ||
+            mFirstLineStartPosition != mLayoutManagerHelper.getDecoratedStart(getChildAt(0))) return false;
+
+        // the same items in the same lines, some of them requested layout
+        boolean dirty = false;
+        int v = 0;
+        for (int l = 0; l < lines; l++) {
+            Line line = mCurrentLines.get(l);
+            if (line.mEllipsized || line.mEstimated || v + line.mItemsCount > childCount) return false;
+            for (int i = 0; i < line.mItemsCount; i++, v++) {
+                View child = getChildAt(v);
+                LayoutParams lp = (LayoutParams) child.getLayoutParams();
+                if (getPosition(child) != line.mStartAdapterIndex + i || lp.isEstimated() ||
+                    lp.isItemChanged() || lp.isItemRemoved() || lp.isViewInvalid()) return false;
+                dirty |= child.isLayoutRequested();
+            }
+        }
+        if (!dirty || v != childCount) return false;
+
+        Trace.beginSection("FLM#relayoutDirtyChildren");
+        v = 0;
+        for (int l = 0; l < lines; l++) {
+            Line line = mCurrentLines.get(l);
+            line.mResized = false;
+            for (int end = v + line.mItemsCount; v < end; v++) {
+                View child = getChildAt(v);
+                if (!child.isLayoutRequested()) continue;
+                int inLine = mLayoutManagerHelper.getDecoratedMeasurementInOther(child);
+                int across = mLayoutManagerHelper.getDecoratedMeasurement(child);
+                if (measure(child, getPosition(child))) { // a placeholder
+                    Trace.endSection();
+                    return false;
+                }
+                if (inLine != mLayoutManagerHelper.getDecoratedMeasurementInOther(child) ||
+                    across != mLayoutManagerHelper.getDecoratedMeasurement(child)) {
+                    line.mResized = true;
+                } else {
+                    LayoutParams lp = (LayoutParams) child.getLayoutParams();
+                    layoutDecoratedWithMargins(child,
+                        getDecoratedLeft(child) - lp.leftMargin, getDecoratedTop(child) - lp.topMargin,
+                        getDecoratedRight(child) + lp.rightMargin, getDecoratedBottom(child) + lp.bottomMargin);
+                }
+            }
+        }
+
+        // greedy breaks stay where they are while lines fit and first items of the next lines don't fit into them,
+        // otherwise children are wrapped again from that line until a new line ends where an old one started
+        v = 0;
+        for (int l = 0; l < mCurrentLines.size(); ) {
+            Line line = mCurrentLines.get(l);
+            if (keepsBreaks(line, v)) {
+                v += line.mItemsCount;
+                l++;
+                continue;
+            }
+            if (mMaxLines != Integer.MAX_VALUE || mLineTable != null) { // ellipsis or table may move
+                Trace.endSection();
+                return false;
+            }
+            for (int kept = rewrapLines(l, v, recycler); l < kept; l++) v += mCurrentLines.get(l).mItemsCount;
+        }
+
+        v = 0;
+        for (int l = 0; l < mCurrentLines.size(); l++) {
+            Line line = mCurrentLines.get(l);
+            int offset = l == 0 ? 0 : mCurrentLines.get(l - 1).mEndValueOfTheHighestItem + mSpacingBetweenLines -
+                line.mStartValueOfTheHighestItem;
+            line.offset(offset);
+            if (line.mResized) {
+                enterSection(line.mStartAdapterIndex);
+                int size = 0;
+                for (int i = 0; i < line.mItemsCount; i++)
+                    size += mLayoutManagerHelper.getDecoratedMeasurementInOther(getChildAt(v + i)) + mCurrentSpacing;
+                recomputeBiggest(line, v);
+                layoutItemsToStart(size - mCurrentSpacing, line, v);
+                remember(line);
+            } else if (offset != 0) {
+                for (int i = 0; i < line.mItemsCount; i++) mLayoutManagerHelper.offsetChild(getChildAt(v + i), offset);
+            }
+            v += line.mItemsCount;
+        }
+
+        // lines moved, fill the viewport or drop those out of it
+        deleteLinesFromEnd(0, recycler);
+        Line last = mCurrentLines.get(mCurrentLines.size() - 1);
+        while (last.end() < contentItemCount() && mCurrentLines.size() < mMaxLines &&
+            (!mLayoutManagerHelper.isFinite() || last.mEndValueOfTheHighestItem <= mLayoutManagerHelper.getEnd())) {
+            last = addLineToEnd(last.end(), last.mEndValueOfTheHighestItem + mSpacingBetweenLines, recycler,
+                mCurrentLines.size() + 1 == mMaxLines);
+            mCurrentLines.add(last);
+            remember(last);
+        }
+        int availableOffset =
+            last.mEndValueOfTheHighestItem - mLayoutManagerHelper.getEnd() + mLayoutManagerHelper.getEndPadding();
+        if (mFirstItemAdapterIndex > 0 && availableOffset < 0) scrollBy(availableOffset, recycler);
+        if (mStackFromEnd) mPinnedToEnd = isAtEnd();
+        mLaidOutChildCount = getChildCount();
+        Trace.endSection();
+        return true;
+    }
+
+    /**
+     * @return whether greedy wrapping keeps {@param line} starting with child {@param v} as is:
+     * it fits, and the next item doesn't fit into it
+     */
+    private boolean keepsBreaks(Line line, int v) {
+        int size = 0;
+        for (int end = v + line.mItemsCount; v < end; v++) {
+            int widthOrHeight = measureInLine(size, getChildAt(v));
+            if (widthOrHeight == Integer.MIN_VALUE) return false;
+            size += widthOrHeight + mSpacingBetweenItems;
+        }
+        return v < getChildCount()
+            ? line.mItemsCount >= mMaxItemsInLine || isLineStart(line.end()) || measureInLine(size, getChildAt(v)) == Integer.MIN_VALUE
+            : !line.mResized || line.end() >= contentItemCount(); // the next item is not attached
+    }
+
+    /**
+     * Wrap attached children into new lines from line {@param l} which starts with child {@param v},
+     * until a new line ends where an old one started: that one and the following ones are kept.
+     * If children run out earlier, the last line is built again to take the items after them.
+     * New lines are marked {@link Line#mResized} and have to be laid out.
+     * @return index of the first kept line, or the line count
+     */
+    private int rewrapLines(int l, int v, RecyclerView.Recycler recycler) {
+        Trace.beginSection("FLM#rewrapLines");
+        List<Line> tail = mCurrentLines.subList(l, mCurrentLines.size());
+        ArrayList<Line> old = new ArrayList<>(tail);
+        tail.clear();
+        int position = old.get(0).mStartAdapterIndex, start = old.get(0).mStartValueOfTheHighestItem;
+        int next = 1, childCount = getChildCount();
+        while (true) {
+            Line line = new Line();
+            line.mStartAdapterIndex = position;
+            line.mStartValueOfTheHighestItem = line.mEndValueOfTheHighestItem = start; // the following ones are moved later
+            line.mResized = true;
+            int size = 0;
+            while (v < childCount && line.mItemsCount < mMaxItemsInLine && (line.mItemsCount == 0 || !isLineStart(position))) {
+                int widthOrHeight = measureInLine(size, getChildAt(v));
+                if (widthOrHeight == Integer.MIN_VALUE) break;
+                size += widthOrHeight + mSpacingBetweenItems;
+                line.mItemsCount++;
+                v++;
+                position++;
+            }
+            if (v == childCount && position < contentItemCount() &&
+                line.mItemsCount < mMaxItemsInLine && !isLineStart(position)) { // the next item may fit, too
+                for (int i = 0; i < line.mItemsCount; i++) detachAndScrapView(getChildAt(v - 1 - i), recycler);
+                line = addLineToEnd(line.mStartAdapterIndex, start, recycler, false);
+                line.mResized = true;
+            }
+            mCurrentLines.add(line);
+            if (v == childCount) break;
+            while (next < old.size() && old.get(next).mStartAdapterIndex < position) next++;
+            if (next < old.size() && old.get(next).mStartAdapterIndex == position) {
+                mCurrentLines.addAll(old.subList(next, old.size()));
+                Trace.endSection();
+                return mCurrentLines.size() - (old.size() - next);
+            }
+        }
+        Trace.endSection();
+        return mCurrentLines.size();
+    }
+
+    /**
+     * In static mode: whether the content key, line size, paddings, and items are the same as during the last layout,
+     * and attached children need neither binding nor measuring.
+     */
+    private boolean isStaticLayoutValid(RecyclerView.State state) {
+        int childCount = getChildCount();
+        if (state.isPreLayout() || mLinesDirty || !mStaticKey.equals(mLaidOutStaticKey) ||
+            mLaidOutLineSize != mLayoutManagerHelper.getLineSize() ||
+            mLaidOutPaddingLeft != getPaddingLeft() || mLaidOutPaddingTop != getPaddingTop() ||
+            mLaidOutItemCount != getItemCount() || mLaidOutChildCount != childCount || childCount == 0) return false;
+        for (int i = 0; i < childCount; i++) {
+            View child = getChildAt(i);
+            if (getPosition(child) != i || !isClean(child)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wrap lines backwards from the last item, which sticks to the end edge, until the viewport is filled.
+     */
+    private void layoutFromEnd(RecyclerView.Recycler recycler) {
+        Trace.beginSection("FLM#layoutFromEnd");
+        mHasEstimatedViews = false;
+        detachAndScrapAttachedViews(recycler);
+        mCurrentLines.clear();
+
+        int end = mLayoutManagerHelper.getEnd() - mLayoutManagerHelper.getEndPadding();
+        for (int i = contentItemCount() - 1; i >= 0 && end >= 0; ) {
+            addLinesToStart(i, end, recycler);
+            Line line = mCurrentLines.get(0);
+            i = line.mStartAdapterIndex - 1;
+            end = line.mStartValueOfTheHighestItem - mSpacingBetweenLines;
+        }
+
+        if (getChildCount() > 0) updateScrollPosition();
+        else rememberFirstItemId();
         Trace.endSection();
     }
 
+    /** @return whether lines reach the end edge, or the last item is laid out */
+    private boolean isViewportFilled() {
+        if (mCurrentLines.isEmpty()) return contentItemCount() == 0;
+        Line last = mCurrentLines.get(mCurrentLines.size() - 1);
+        return last.end() >= contentItemCount() ||
+            last.mEndValueOfTheHighestItem > mLayoutManagerHelper.getEnd();
+    }
+
+    /** @return whether the last item is laid out and its line ends within the viewport */
+    private boolean isAtEnd() {
+        if (mCurrentLines.isEmpty()) return true;
+        Line last = mCurrentLines.get(mCurrentLines.size() - 1);
+        return last.end() >= contentItemCount() &&
+            last.mEndValueOfTheHighestItem <= mLayoutManagerHelper.getEnd() - mLayoutManagerHelper.getEndPadding();
+    }
+
+    /**
+     * Find lines which are safe to reattach without measuring and wrapping again:
+     * their items and the item which didn't fit into them are unchanged.
+     * Positions are already updated by RecyclerView, so changes before the line don't matter.
+     */
+    private LineBreaks reusableLines() {
+        LineBreaks lines = mReusableLines;
+        lines.reset(0, 0, 0);
+        int childCount = getChildCount();
+        for (int l = 0, v = 0, size = mCurrentLines.size(); l < size; l++) {
+            Line line = mCurrentLines.get(l);
+            int end = v + line.mItemsCount;
+            if (line.mEllipsized || end > childCount) break;
+            View first = getChildAt(v);
+            int start = getPosition(first);
+            boolean clean = true;
+            for (int position = start; v < end; v++, position++) {
+                View child = getChildAt(v);
+                clean &= isClean(child) && getPosition(child) == position;
+            }
+            if (clean && (end < childCount
+                ? isClean(getChildAt(end)) && getPosition(getChildAt(end)) == start + line.mItemsCount
+                : start + line.mItemsCount == contentItemCount())) {
+                lines.put(start, line.mItemsCount, line.biggest());
+            }
+        }
+        return lines;
+    }
+    private static boolean isClean(View child) {
+        LayoutParams lp = (LayoutParams) child.getLayoutParams();
+        return !child.isLayoutRequested() && !lp.isEstimated() &&
+            !lp.isItemChanged() && !lp.isItemRemoved() && !lp.isViewInvalid();
+    }
+
+    /**
+     * Attach views of a line which is known to be unchanged, using their current measurements.
+     * @return the line, or null if some view turned out to need measuring
+     */
+    private Line reattachLine(int startAdapterIndex, int count, int start, RecyclerView.Recycler recycler) {
+        Trace.beginSection("FLM#reattachLine");
+        long startNanos = mDebug ? System.nanoTime() : 0L;
+        int measures = mMeasureCount, binds = mBindCount;
+        enterSection(startAdapterIndex);
+        int currentLineSize = 0;
+        int currentMaxValue = 0;
+
+        Line line = new Line();
+        line.mStartValueOfTheHighestItem = start;
+        line.mStartAdapterIndex = startAdapterIndex;
+        line.mLineInSection = nextLineInSection(startAdapterIndex);
+
+        for (int i = 0; i < count; i++) {
+            View view = attach(recycler, startAdapterIndex + i, -1);
+            if (!isClean(view)) {
+                for (int k = 0; k <= i; k++) detachAndScrapViewAt(getChildCount() - 1, recycler);
+                Trace.endSection();
+                return null;
+            }
+            currentMaxValue = measureLineForItem(currentMaxValue, line, mLayoutManagerHelper.getDecoratedMeasurement(view));
+            currentLineSize += mLayoutManagerHelper.getDecoratedMeasurementInOther(view) + mCurrentSpacing;
+        }
+
+        layoutItemsToEnd(currentLineSize - mCurrentSpacing, line);
+        if (mDebug) stamp(line, Line.REATTACHED, startNanos, measures, binds);
+        Trace.endSection();
+        return line;
+    }
+
+    /**
+     * With stable IDs, make sure the first line starts with the same item as before.
+     */
+    private void findAnchorById() {
+        RecyclerView rv;
+        RecyclerView.Adapter<?> adapter;
+        if (mFirstItemId == RecyclerView.NO_ID || (rv = findRV()) == null ||
+            (adapter = rv.getAdapter()) == null || !adapter.hasStableIds()) return;
+
+        int count = contentItemCount();
+        int anchor = Math.min(mFirstItemAdapterIndex, count - 1);
+        if (anchor < 0 || adapter.getItemId(anchor) == mFirstItemId) return;
+        for (int d = 1, window = Math.max(2 * getChildCount(), 16); d <= window; d++) {
+            if (anchor - d >= 0 && adapter.getItemId(anchor - d) == mFirstItemId) {
+                mFirstItemAdapterIndex = anchor - d;
+                return;
+            }
+            if (anchor + d < count && adapter.getItemId(anchor + d) == mFirstItemId) {
+                mFirstItemAdapterIndex = anchor + d;
+                return;
+            }
+        }
+    }
+    private void rememberFirstItemId() {
+        RecyclerView rv;
+        RecyclerView.Adapter<?> adapter;
+        View first;
+        mFirstItemId = (first = getChildAt(0)) != null && (rv = (RecyclerView) first.getParent()) != null &&
+            (adapter = rv.getAdapter()) != null && adapter.hasStableIds()
+            ? rv.getChildItemId(first) : RecyclerView.NO_ID;
+    }
+
+    /**
+     * @return number of leading lines which can stay attached after {@link #maxLines(int, boolean, boolean)} change
+     */
+    private int keptLines() {
+        int keep = Math.min(mKeepLines, mCurrentLines.size() - 1);
+        if (keep <= 0 || mCurrentLines.get(0).mStartAdapterIndex != mFirstItemAdapterIndex) return 0;
+        for (int l = 0, v = 0; l < keep; l++) {
+            for (int end = v + mCurrentLines.get(l).mItemsCount; v < end; v++) {
+                View child = getChildAt(v);
+                if (child == null || !isClean(child)) return 0;
+            }
+        }
+        return keep;
+    }
+
+    @Override public void onLayoutCompleted(RecyclerView.State state) {
+        mStateSaved = false;
+        mKeepLines = -1;
+        mLinesDirty = false;
+        mEllipsisRebindPending = false;
+        if (mStaticKey != null) return; // nothing is recycled
+        countViewTypes();
+        applyPoolSizes();
+        preload(true);
+        if (mPrewarmPool && mPoolWarmer == null && mMaxViewsByType.size() > 0) {
+            mPoolWarmer = new PoolWarmer(this);
+            Looper.myQueue().addIdleHandler(mPoolWarmer);
+        }
+    }
+
+    /**
+     * Update max numbers of attached views by type: visible lines, and sections added by lookBack.
+     */
+    private void countViewTypes() {
+        if (!mAutoSizePool && !mPrewarmPool) return;
+        SparseIntArray counts = mViewsByType;
+        counts.clear();
+        for (int i = 0, size = getChildCount(); i < size; i++) {
+            int type = getItemViewType(getChildAt(i));
+            counts.put(type, counts.get(type) + 1);
+        }
+        for (int i = 0, size = counts.size(); i < size; i++) {
+            int type = counts.keyAt(i), count = counts.valueAt(i);
+            if (count > mMaxViewsByType.get(type)) mMaxViewsByType.put(type, count);
+        }
+    }
+
+    /**
+     * Grow pool capacities up to max numbers of attached views.
+     */
+    private void applyPoolSizes() {
+        RecyclerView rv;
+        if (!mAutoSizePool || (rv = findRV()) == null) return;
+        RecyclerView.RecycledViewPool pool = rv.getRecycledViewPool();
+        for (int i = 0, size = mMaxViewsByType.size(); i < size; i++) {
+            int type = mMaxViewsByType.keyAt(i), count = mMaxViewsByType.valueAt(i);
+            if (count > Math.max(PoolWarmer.DEFAULT_POOL_SIZE, mPoolCapacities.get(type))) {
+                pool.setMaxRecycledViews(type, count);
+                mPoolCapacities.put(type, count);
+            }
+        }
+    }
+
+    /**
+     * Put one new ViewHolder of a type which has less spare views than it usually has attached.
+     * @return whether there's more to create
+     */
+    boolean prewarmOne(RecyclerView rv) {
+        RecyclerView.Adapter<?> adapter;
+        if (!mPrewarmPool || rv == null || (adapter = rv.getAdapter()) == null) {
+            mPoolWarmer = null;
+            return false;
+        }
+        if (mScrollState != RecyclerView.SCROLL_STATE_IDLE) return true;
+
+        RecyclerView.RecycledViewPool pool = rv.getRecycledViewPool();
+        for (int i = 0, size = mMaxViewsByType.size(); i < size; i++) {
+            int type = mMaxViewsByType.keyAt(i);
+            int count = pool.getRecycledViewCount(type);
+            if (count >= Math.min(mMaxViewsByType.valueAt(i), mPoolCapacities.get(type, Integer.MAX_VALUE))) continue;
+
+            Trace.beginSection("FLM#prewarmPool");
+            pool.putRecycledView(adapter.createViewHolder(rv, type));
+            Trace.endSection();
+            if (pool.getRecycledViewCount(type) == count) mPoolCapacities.put(type, count); // the pool is full
+            return true;
+        }
+        mPoolWarmer = null;
+        return false;
+    }
+
+    /**
+     * Request layout which rebuilds all the lines.
+     */
+    private void relayout() {
+        mKeepLines = 0;
+        mLinesDirty = true;
+        requestLayout();
+    }
+
+    /**
+     * Make line breaks for current line size, spacing, and maxItemsInLine the most recent ones.
+     * @return whether they differ from those used during previous layout
+     */
+    private boolean selectLineBreaks() {
+        int lineSize = mLayoutManagerHelper.getLineSize();
+        LineBreaks current = mLineBreaks.isEmpty() ? null : mLineBreaks.get(0);
+        if (current != null && current.matches(lineSize, mSpacingBetweenItems, mMaxItemsInLine)) return false;
+
+        LineBreaks breaks = null;
+        for (int i = 1, size = mLineBreaks.size(); i < size; i++) {
+            if (mLineBreaks.get(i).matches(lineSize, mSpacingBetweenItems, mMaxItemsInLine)) {
+                breaks = mLineBreaks.remove(i);
+                break;
+            }
+        }
+        if (breaks == null) {
+            breaks = mLineBreaks.size() == LineBreaks.MAX_LAYOUTS
+                ? mLineBreaks.remove(LineBreaks.MAX_LAYOUTS - 1) : new LineBreaks();
+            breaks.reset(lineSize, mSpacingBetweenItems, mMaxItemsInLine);
+        }
+        mLineBreaks.add(0, breaks);
+        return current != null;
+    }
+
+    /**
+     * Line size changed. Start from the line which contains the first item
+     * and, if the rest of the content is known to be too short to fill the viewport, from an earlier one.
+     * @return start position of the first line
+     */
+    private int reflowAnchor(int topOrLeft) {
+        LineBreaks breaks = mLineBreaks.get(0);
+        int line = breaks.find(mFirstItemAdapterIndex);
+        if (line < 0) return topOrLeft;
+        mFirstItemAdapterIndex = breaks.start(line);
+        if (mMaxLines != Integer.MAX_VALUE || !mLayoutManagerHelper.isFinite()) return topOrLeft;
+
+        int end = mLayoutManagerHelper.getEnd() - mLayoutManagerHelper.getEndPadding();
+        int lineEnd = topOrLeft - mSpacingBetweenLines;
+        for (int i = line; i < breaks.size() && (i == line || breaks.start(i) == breaks.end(i - 1)); i++) {
+            lineEnd += mSpacingBetweenLines + breaks.extent(i);
+            if (lineEnd >= end) return topOrLeft;
+            if (breaks.end(i) == contentItemCount()) {
+                // known content ends within the viewport: pull in known preceding lines
+                // instead of scrolling back after layout
+                int start = mLayoutManagerHelper.getStartPadding();
+                int firstLine = line, firstTop = topOrLeft + end - lineEnd;
+                while (firstTop > start && firstLine > 0 && breaks.end(firstLine - 1) == breaks.start(firstLine))
+                    firstTop -= breaks.extent(--firstLine) + mSpacingBetweenLines;
+                if (firstTop > start && firstLine > 0) return topOrLeft; // unknown, let onLayoutChildren scroll
+                mFirstItemAdapterIndex = breaks.start(firstLine);
+                return Math.min(firstTop, start);
+            }
+        }
+        return topOrLeft;
+    }
+
+    private void remember(Line line) {
+        if (!line.mEstimated && !line.mEllipsized && line.mSkipped == 0) {
+            LineBreaks breaks = mLineBreaks.get(0);
+            if (mLookBackListener != null && breaks.conflicts(line.mStartAdapterIndex, line.mItemsCount))
+                mLookBackListener.onLookBackMismatch(line.mStartAdapterIndex, mLastLookBackDepth);
+            breaks.put(line.mStartAdapterIndex, line.mItemsCount, line.biggest());
+        }
+    }
+
+    /**
+     * @return line table for current line size, spacing, maxItemsInLine, and items, or null if it is not ready yet
+     */
+    private LineTable lineTable(RecyclerView.State state) {
+        if (mSizeProvider == null || mStackFromEnd || mLineBreaker != LineBreaker.GREEDY || mSections != null ||
+            state.isPreLayout())
+            return mLineTable;
+        int lineSize = mLayoutManagerHelper.getLineSize(), count = contentItemCount();
+        if (mLineTable != null &&
+            !mLineTable.matches(lineSize, mSpacingBetweenItems, mSpacingBetweenLines, mMaxItemsInLine, count)) {
+            invalidateLineTable(0);
+        }
+        if (mLineTable == null && lineSize > 0 && (mLineTableBuilder == null ||
+            !mLineTableBuilder.matches(lineSize, mSpacingBetweenItems, mSpacingBetweenLines, mMaxItemsInLine, count))) {
+            if (mLineTableBuilder != null) mLineTableBuilder.cancel();
+            LineTable stale = mStaleLineTable;
+            if (stale != null && !stale.matches(lineSize, mSpacingBetweenItems, mSpacingBetweenLines, mMaxItemsInLine, -1))
+                stale = null;
+            mLineTableBuilder = new LineTable.Builder(this, mSizeProvider, mLineTableExecutor,
+                lineSize, mSpacingBetweenItems, mSpacingBetweenLines, mMaxItemsInLine, count,
+                stale, stale != null ? mStaleLines : 0, stale != null ? mStaleTailFrom : Integer.MAX_VALUE, mStaleTailShift);
+            mLineTableBuilder.start();
+        }
+        return mLineTable;
+    }
+
+    /** Called on the main thread when the table is built. */
+    void onLineTableBuilt(LineTable.Builder builder, LineTable table) {
+        if (mLineTableBuilder != builder) return; // cancelled meanwhile
+        mLineTableBuilder = null;
+        mStaleLineTable = null;
+        mStaleTailFrom = Integer.MAX_VALUE;
+        mLineTable = table;
+        relayout();
+    }
+
+    /**
+     * Items starting from {@param from} changed. Lines before them will be reused when rebuilding the table.
+     */
+    private void invalidateLineTable(int from) {
+        invalidateLineTable(from, Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * Items from {@param from} to {@param end} changed, and the following ones were shifted by {@param shift}.
+     * Lines before them will be reused when rebuilding the table, and so will lines after them
+     * once the new line breaks meet the old ones, like {@link LineBreaks} keep lines not touching the change.
+     */
+    private void invalidateLineTable(int from, int end, int shift) {
+        if (mLineTableBuilder != null) {
+            mLineTableBuilder.cancel();
+            mLineTableBuilder = null;
+        }
+        LineTable table = mLineTable != null ? mLineTable : mStaleLineTable;
+        int valid = mLineTable != null ? Integer.MAX_VALUE : mStaleLines;
+        int tail = mLineTable != null ? 0 : mStaleTailFrom, tailShift = mLineTable != null ? 0 : mStaleTailShift;
+        mLineTable = null;
+        // the line containing the item before changed ones could take more or less items
+        int keep = table == null || from <= 0 || table.itemCount() == 0
+            ? 0 : Math.min(valid, table.line(Math.min(from, table.itemCount()) - 1));
+        if (table == null || end == Integer.MAX_VALUE || tail == Integer.MAX_VALUE) {
+            tail = Integer.MAX_VALUE;
+        } else {
+            tail = Math.max(tail, end - shift) + shift; // in positions after the change
+            tailShift += shift;
+        }
+        mStaleLineTable = keep > 0 || tail != Integer.MAX_VALUE ? table : null;
+        mStaleLines = keep;
+        mStaleTailFrom = tail;
+        mStaleTailShift = tailShift;
+    }
+
+    @Override public void onAttachedToWindow(RecyclerView view) {
+        super.onAttachedToWindow(view);
+        view.addRecyclerListener(mEllipsisRecyclerListener);
+        observeSections(true);
+    }
+
+    @Override public void onDetachedFromWindow(RecyclerView view, RecyclerView.Recycler recycler) {
+        super.onDetachedFromWindow(view, recycler);
+        view.removeRecyclerListener(mEllipsisRecyclerListener);
+        observeSections(false);
+        saveState(); // the parent cell is likely recycled
+        if (mLineTableBuilder != null) { // will be restarted with the next layout
+            mLineTableBuilder.cancel();
+            mLineTableBuilder = null;
+        }
+        if (mPoolWarmer != null) {
+            Looper.myQueue().removeIdleHandler(mPoolWarmer);
+            mPoolWarmer = null;
+        }
+        if (mSizeCheckPending) {
+            Looper.myQueue().removeIdleHandler(mSizeChecker);
+            mSizeCheckPending = false;
+        }
+        if (mLayoutContinuationPosted) {
+            removeCallbacks(mContinueLayout);
+            mLayoutContinuationPosted = false;
+        }
+    }
+
     @Override public void onRestoreInstanceState(Parcelable state) {
         Bundle data = (Bundle) state;
         mFirstItemAdapterIndex = data.getInt(TAG_FIRST_ITEM_ADAPTER_INDEX);
         mFirstLineStartPosition = data.getInt(TAG_FIRST_LINE_START_POSITION);
+        mFirstLineInSection = -1;
+        mPinnedToEnd = data.getBoolean(TAG_PINNED_TO_END, mStackFromEnd);
     }
 
     @Override public Parcelable onSaveInstanceState() {
-        Bundle data = new Bundle(2);
+        Bundle data = new Bundle(3);
         data.putInt(TAG_FIRST_ITEM_ADAPTER_INDEX, mFirstItemAdapterIndex);
         data.putInt(TAG_FIRST_LINE_START_POSITION, mFirstLineStartPosition);
+        data.putBoolean(TAG_PINNED_TO_END, mPinnedToEnd);
         return data;
     }
 
@@ -199,8 +1012,10 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
         if (orientation != mOrientation) {
             mOrientation = orientation;
             mLayoutManagerHelper = LMHelper.createLayoutManagerHelper(this, orientation, mGravity);
+            mSizeCache.clear();
+            mLineBreaks.clear();
 
-            requestLayout();
+            relayout();
         }
 
         return this;
@@ -216,7 +1031,7 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
         if (maxItemsInLine <= 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
         assertNotInLayoutOrScroll(null);
         mMaxItemsInLine = maxItemsInLine;
-        requestLayout();
+        relayout();
         return this;
     }
     public int maxItemsInLine() {
@@ -225,6 +1040,7 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
 
     /**
      * Update maxLine constraint.
+     * Lines before the last one of {@code min(old, new)} stay attached, only the following ones are rebuilt.
      * @param maxLines  max line count
      * @param ellipsize show “ellipsis” view (using last adapter element)
      * @param notify    notify “ellipsis” view changed (leads to animated change) (applicable only if {@param ellipsize})
@@ -233,13 +1049,17 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
         if (maxLines <= 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
         assertNotInLayoutOrScroll(null);
         if (mMaxLines != maxLines || mEllipsize != ellipsize) {
+            int keep = mEllipsize == ellipsize ? Math.min(mMaxLines, maxLines) - 1 : 0;
+            mKeepLines = mKeepLines < 0 ? keep : Math.min(mKeepLines, keep);
             mMaxLines = maxLines;
             mEllipsisCount = -1;
             if ((mEllipsize = ellipsize) && notify) {
                 RecyclerView rv;
                 RecyclerView.Adapter<?> a;
-                if ((rv = findRV()) != null && (a = rv.getAdapter()) != null)
+                if ((rv = findRV()) != null && (a = rv.getAdapter()) != null) {
                     a.notifyItemChanged(getItemCount() - 1, ELLIPSIS_COUNT_CHANGED_PAYLOAD);
+                    mEllipsisRebindPending = true;
+                }
             }
             requestLayout();
         }
@@ -256,22 +1076,531 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
      * Avoid having different layout when scrolling back.
      * Sacrifice performance by laying out extra views.
      * Super useful when there are several MATCH_PARENT items which separate the layout into different sub-flows.
-     * Consider increasing {@link androidx.recyclerview.widget.RecyclerView.RecycledViewPool#setMaxRecycledViews(int, int) scrap size}
+     * Consider {@link #autoSizePool(boolean)}, or increasing
+     * {@link androidx.recyclerview.widget.RecyclerView.RecycledViewPool#setMaxRecycledViews(int, int) scrap size}
      * to average section size so the pool can recycle properly.
+     * {@link LookBack#ADAPTIVE} follows lines laid out before, and otherwise looks back as far as typical sections are long,
+     * within {@link #lookBackBudget(int)}.
      * @param count max number of views to lay out
      */
-    public FlowLayoutManager lookBack(@IntRange(from = 0L) @LookBack int count) {
-        if (count < 0) throw new IllegalArgumentException();
+    public FlowLayoutManager lookBack(@IntRange(from = -1L) @LookBack int count) {
+        if (count < 0 && count != LookBack.ADAPTIVE) throw new IllegalArgumentException();
         assertNotInLayoutOrScroll(null);
         this.mLookBack = count;
         return this;
     }
-    @IntRange(from = 0L) public int lookBack() {
+    @IntRange(from = -1L) public int lookBack() {
         return mLookBack;
     }
 
-    @Retention(RetentionPolicy.SOURCE) @Target(ElementType.PARAMETER) @IntDef({LookBack.NONE, LookBack.EXACT})
-    public @interface LookBack { int NONE = 0; int EXACT = Integer.MAX_VALUE; }
+    @Retention(RetentionPolicy.SOURCE) @Target(ElementType.PARAMETER) @IntDef({LookBack.NONE, LookBack.EXACT, LookBack.ADAPTIVE})
+    public @interface LookBack { int NONE = 0; int EXACT = Integer.MAX_VALUE; int ADAPTIVE = -1; }
+
+    /**
+     * Time {@link LookBack#ADAPTIVE} may spend per frame. Sections which don't fit are wrapped partially, see {@link LookBackListener}.
+     */
+    public FlowLayoutManager lookBackBudget(@IntRange(from = 1L) int millis) {
+        if (millis < 1) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        mLookBackBudgetNanos = millis * 1_000_000L;
+        return this;
+    }
+    public int lookBackBudget() {
+        return (int) (mLookBackBudgetNanos / 1_000_000L);
+    }
+
+    public interface LookBackListener {
+        /**
+         * Items were wrapped into lines differently than before, i. e. they jumped between lines while scrolling.
+         * Happens when lookBack doesn't reach the section start, and when item sizes change without notifying.
+         * Called during layout, don't touch the adapter here.
+         * @param position first item of the line wrapped differently
+         * @param depth    lookBack depth of the last pass, it is chosen for {@link LookBack#ADAPTIVE}
+         */
+        void onLookBackMismatch(int position, int depth);
+    }
+
+    /** Report line breaks which differ from earlier ones, to tune {@link #lookBack(int)}. */
+    public FlowLayoutManager lookBackListener(@Nullable LookBackListener listener) {
+        mLookBackListener = listener;
+        return this;
+    }
+    @Nullable public LookBackListener lookBackListener() {
+        return mLookBackListener;
+    }
+
+    /**
+     * Track max numbers of attached views of each type, in visible lines and lookBack sections,
+     * and grow {@link androidx.recyclerview.widget.RecyclerView.RecycledViewPool} capacities to them.
+     * Capacities are never shrunk.
+     */
+    public FlowLayoutManager autoSizePool(boolean autoSize) {
+        mAutoSizePool = autoSize;
+        return this;
+    }
+    public boolean autoSizePool() {
+        return mAutoSizePool;
+    }
+
+    /**
+     * After layout, create ViewHolders in idle time, one at a time, until the pool has as many of each type
+     * as are usually attached, so the first fling doesn't inflate.
+     */
+    public FlowLayoutManager prewarmPool(boolean prewarm) {
+        mPrewarmPool = prewarm;
+        return this;
+    }
+    public boolean prewarmPool() {
+        return mPrewarmPool;
+    }
+
+    /**
+     * @return max number of attached views of {@param viewType} seen so far, a suggested pool capacity.
+     * Tracked only with {@link #autoSizePool(boolean)} or {@link #prewarmPool(boolean)}
+     */
+    public int suggestedPoolSize(int viewType) {
+        return mMaxViewsByType.get(viewType);
+    }
+
+    /**
+     * Don't measure views while flinging faster than {@param minVelocity}.
+     * Lines are broken using sizes these items had last time (or average size of their view type),
+     * and visible lines are re-measured when scrolling settles.
+     * @param minVelocity fling velocity in pixels per second, 0 to always measure
+     */
+    public FlowLayoutManager deferMeasureOnFling(@IntRange(from = 0L) int minVelocity) {
+        if (minVelocity < 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        mDeferMeasureVelocity = minVelocity;
+        return this;
+    }
+    @IntRange(from = 0L) public int deferMeasureOnFling() {
+        return mDeferMeasureVelocity;
+    }
+
+    /**
+     * Drag-to-reorder mode, turn it on while an item is dragged, e.g. from
+     * {@link androidx.recyclerview.widget.ItemTouchHelper.Callback#onSelectedChanged}.
+     * Lines keep starting at the same positions instead of following moved items,
+     * lines not touched by a move are reattached as usual, and those between its source and destination
+     * are wrapped again without measuring views which were only moved.
+     * Ignored for measuring with FILL gravity, which stretches measured views.
+     */
+    public FlowLayoutManager reorderMode(boolean reorder) {
+        mReorderLineSize = reorder ? mLayoutManagerHelper.getLineSize() : -1;
+        return this;
+    }
+    public boolean reorderMode() {
+        return mReorderLineSize >= 0;
+    }
+
+    /**
+     * Fill the viewport progressively: stop adding lines when layout takes longer than {@param budgetMillis},
+     * and add the rest during the next frames. Already laid out lines are reattached then, without binding and measuring.
+     * Scrolling in between adds lines as usual. Applies when the size in scroll direction is exact and maxLines is not set.
+     * @param budgetMillis time for one layout pass, 0 to always fill the viewport at once
+     */
+    public FlowLayoutManager progressiveLayout(@IntRange(from = 0L) int budgetMillis) {
+        if (budgetMillis < 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        mLayoutBudgetNanos = budgetMillis * 1_000_000L;
+        return this;
+    }
+    @IntRange(from = 0L) public int progressiveLayout() {
+        return (int) (mLayoutBudgetNanos / 1_000_000L);
+    }
+
+    /**
+     * Like {@link androidx.recyclerview.widget.LinearLayoutManager#setStackFromEnd(boolean)}:
+     * initially, and while scrolled to the end, the last item sticks to the end edge,
+     * and lines are wrapped backwards from it, so they are the same however the end was reached.
+     * Only lines within the viewport are bound. Ignored when maxLines is set; the line table is not used.
+     */
+    public FlowLayoutManager stackFromEnd(boolean stackFromEnd) {
+        assertNotInLayoutOrScroll(null);
+        if (mStackFromEnd != stackFromEnd) {
+            mStackFromEnd = mPinnedToEnd = stackFromEnd;
+            mLineBreaks.clear(); // wrapped in the other direction
+            invalidateLineTable(0);
+            relayout();
+        }
+        return this;
+    }
+    public boolean stackFromEnd() {
+        return mStackFromEnd;
+    }
+
+    /**
+     * Non-scrolling mode for small bounded flows, like chip groups in list items.
+     * Layout always starts from the first item, and pools are not tracked.
+     * When layout is requested again with an equal key, the same line size, and the same attached items
+     * which are neither changed nor requested layout, children stay in place without scrapping, binding, and measuring.
+     * @param contentKey identifies items and anything else affecting their sizes; null for normal scrolling mode
+     */
+    public FlowLayoutManager staticContent(@Nullable Object contentKey) {
+        assertNotInLayoutOrScroll(null);
+        if (contentKey == null ? mStaticKey != null : !contentKey.equals(mStaticKey)) {
+            mStaticKey = contentKey;
+            mLaidOutStaticKey = null;
+            requestLayout();
+        }
+        return this;
+    }
+    @Nullable public Object staticContent() {
+        return mStaticKey;
+    }
+
+    /**
+     * Decides where lines break. Sizes are decorated, including margins, along the line.
+     */
+    public interface LineBreaker {
+        /** First fit, the default: take items while they fit. */
+        LineBreaker GREEDY = new LineBreaker() {
+            @Override public int lookahead() {
+                return 1;
+            }
+            @Override public int breakLine(@NonNull int[] sizes, int from, int to, boolean last,
+                                           @Px int lineSize, @Px int spacing, int maxItems) {
+                int i = from, currentLineSize = 0;
+                while (i < to && i - from != maxItems && fits(currentLineSize, sizes[i], lineSize))
+                    currentLineSize += sizes[i++] + spacing;
+                return i - from;
+            }
+        };
+
+        /** @return how many lines (as wrapped greedily) of item sizes to pass to {@link #breakLine} */
+        @IntRange(from = 1L) int lookahead();
+
+        /**
+         * @param sizes    sizes of items starting with the first item of the line, in [from, to)
+         * @param last     whether the last size is the size of the last item in the list
+         * @param maxItems max number of items in a line
+         * @return number of items in the line starting at {@param from}, at least 1.
+         * The line gets less items if measured ones turn out not to fit
+         */
+        int breakLine(@NonNull int[] sizes, int from, int to, boolean last, @Px int lineSize, @Px int spacing, int maxItems);
+    }
+
+    /**
+     * Set strategy of breaking lines, {@link LineBreaker#GREEDY} by default.
+     * Non-greedy breakers look at sizes of items measured before, or estimated by their view type,
+     * and don't apply to the last line when maxLines is set.
+     * When scrolling back, lines follow those laid out before. The line table is not used.
+     */
+    public FlowLayoutManager lineBreaker(@NonNull LineBreaker breaker) {
+        assertNotInLayoutOrScroll(null);
+        if (mLineBreaker != breaker) {
+            mLineBreaker = breaker;
+            mLineBreaks.clear();
+            invalidateLineTable(0);
+            relayout();
+        }
+        return this;
+    }
+    @NonNull public LineBreaker lineBreaker() {
+        return mLineBreaker;
+    }
+
+    /**
+     * Line breaks declared by data, e. g. section starts, so there's no need in MATCH_PARENT spacer items.
+     * Called on the main thread, and on the line table executor if the table is enabled.
+     */
+    public interface ExplicitBreaks {
+        /**
+         * @return whether a new line must start with the item at {@param position}.
+         * To break after an item, return true for the next position.
+         * When this changes, notify the adapter about changed items
+         */
+        boolean isLineStart(int position);
+    }
+
+    /**
+     * Break lines where data says so, without any views. Such breaks also delimit {@link #lookBack(int)} sections.
+     * @param breaks line starts, or null
+     */
+    public FlowLayoutManager explicitBreaks(@Nullable ExplicitBreaks breaks) {
+        assertNotInLayoutOrScroll(null);
+        if (mExplicitBreaks != breaks) {
+            mExplicitBreaks = breaks;
+            mLineBreaks.clear();
+            invalidateLineTable(0);
+            relayout();
+        }
+        return this;
+    }
+    @Nullable public ExplicitBreaks explicitBreaks() {
+        return mExplicitBreaks;
+    }
+
+    /**
+     * Configuration of a section of items, fields left unset are taken from the layout manager.
+     */
+    public static final class Section {
+        int mGravity = -1, mSpacingBetweenItems = -1, mMaxItemsInLine = -1;
+        int mMaxLines = Integer.MAX_VALUE;
+        boolean mEllipsize;
+
+        public Section gravity(int gravity) {
+            mGravity = gravity;
+            return this;
+        }
+        public Section spacingBetweenItems(int spacing) {
+            if (spacing < 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+            mSpacingBetweenItems = spacing;
+            return this;
+        }
+        public Section maxItemsInLine(int maxItemsInLine) {
+            if (maxItemsInLine <= 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+            mMaxItemsInLine = maxItemsInLine;
+            return this;
+        }
+        /**
+         * Collapse the section to {@param maxLines}. Lines of such sections are always wrapped from the section start.
+         * @param ellipsize whether the last item of the section is an ellipsis: shown at the end of the collapsed section
+         *                  in place of items which don't fit, and hidden otherwise, see {@link FlowLayoutManager#sectionEllipsisCount(int)}
+         */
+        public Section maxLines(int maxLines, boolean ellipsize) {
+            if (maxLines <= 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+            mMaxLines = maxLines;
+            mEllipsize = ellipsize;
+            return this;
+        }
+
+        /** Sections with unlimited lines are not collapsible, just their ellipsis item is hidden. */
+        boolean isCollapsible() {
+            return mMaxLines != Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Splits items into sections, each starting a new line and having its own {@link Section} configuration.
+     * Called on the main thread. When this changes, notify the adapter about changed items
+     */
+    public interface Sections {
+        /** @return adapter position of the first item of the section containing {@param position} */
+        int sectionStart(int position);
+        /** @return adapter position after the last item of the section containing {@param position} */
+        int sectionEnd(int position);
+        /** @return configuration of the section starting at {@param sectionStart}, or null to use the layout manager's one */
+        @Nullable Section section(int sectionStart);
+    }
+
+    /**
+     * @return sections made of adapters of {@param adapter}, configured by {@param sections} in the same order;
+     * missing or null configurations use the layout manager's one
+     */
+    @NonNull public static Sections sectionsOf(@NonNull ConcatAdapter adapter, @NonNull Section... sections) {
+        return new ConcatSections(adapter, sections);
+    }
+
+    /**
+     * Split items into sections with their own gravity, spacing, item cap and number of lines, all in one flow.
+     * Per section spacing between lines isn't supported.
+     * @param sections sections, or null
+     */
+    public FlowLayoutManager sections(@Nullable Sections sections) {
+        assertNotInLayoutOrScroll(null);
+        if (mSections != sections) {
+            observeSections(false);
+            mSections = sections;
+            mSectionEllipsisCounts.clear();
+            observeSections(isAttachedToWindow());
+            mLineBreaks.clear();
+            invalidateLineTable(0);
+            mFirstLineInSection = -1;
+            relayout();
+        }
+        return this;
+    }
+    @Nullable public Sections sections() {
+        return mSections;
+    }
+    private void observeSections(boolean observe) {
+        if (mSections instanceof ConcatSections) ((ConcatSections) mSections).observe(observe);
+    }
+
+    /**
+     * Tells which items are not loaded yet, e. g. {@code position -> adapter.peek(position) == null}
+     * for {@code PagingDataAdapter} with placeholders enabled.
+     */
+    public interface Placeholders {
+        boolean isPlaceholder(int position);
+    }
+
+    /**
+     * Lay out placeholders with estimated sizes, so lines don't depend on whatever placeholder views look like:
+     * average size of loaded items of the same view type or, until any is measured, the given size.
+     * When a page loads (adapter notifies about changed items), lines before it and lines which still start
+     * at the same items are reattached as is, and the first line stays in place.
+     * @param placeholders not loaded positions, or null
+     * @param width        decorated placeholder width with margins, or -1 to measure placeholders as is until loaded items are known
+     * @param height       decorated placeholder height with margins
+     */
+    public FlowLayoutManager placeholders(@Nullable Placeholders placeholders, @Px int width, @Px int height) {
+        if (width < -1 || height < -1 || (width < 0) != (height < 0)) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        assertNotInLayoutOrScroll(null);
+        mPlaceholders = placeholders;
+        mPlaceholderWidth = width;
+        mPlaceholderHeight = height;
+        relayout();
+        return this;
+    }
+    @Nullable public Placeholders placeholders() {
+        return mPlaceholders;
+    }
+
+    public interface PreloadListener {
+        /**
+         * Items in [{@param from}, {@param to}) are expected to be bound soon, load their data.
+         * Each range is reported once until the adapter changes.
+         */
+        void onPreload(int from, int to);
+    }
+
+    /**
+     * Report items of {@param lines} lines following the laid out ones in scroll direction,
+     * as they are known from previous layouts or the line table, or estimated by average items per line.
+     * Checked when a line is added, so the data can be ready before the line is bound.
+     * @param listener preload callback, or null
+     */
+    public FlowLayoutManager preload(@Nullable PreloadListener listener, @IntRange(from = 1L) int lines) {
+        if (lines < 1) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        mPreloadListener = listener;
+        mPreloadLines = lines;
+        resetPreload();
+        return this;
+    }
+
+    /**
+     * Decorated item sizes, including margins, known without binding views. Called on a background thread.
+     * Must return the same sizes items will have after binding, and must not see adapter changes
+     * before the adapter notifies about them.
+     */
+    public interface SizeProvider {
+        /** @return size along the line, i. e. width for {@code VERTICAL} orientation */
+        @Px int sizeInLine(int position, @Px int lineSize);
+        /** @return size across the line, i. e. height for {@code VERTICAL} orientation */
+        @Px int sizeAcross(int position, @Px int lineSize);
+    }
+
+    /**
+     * Break the whole list into lines on {@param executor}, in chunks, using sizes from {@param provider}.
+     * When ready, the table makes {@link #scrollToPosition(int)} land on the same line regardless of scroll history,
+     * makes the scrollbar exact, and enables {@link #lineOf(int)} and {@link #lineCount()}.
+     * Until then, and if maxLines is set, lines are broken using measured views as usual.
+     * The table is rebuilt after adapter changes, keeping the lines before the changed items.
+     * @param provider item sizes, or null to disable the table
+     */
+    public FlowLayoutManager lineTable(@Nullable SizeProvider provider, @Nullable Executor executor) {
+        if ((provider == null) != (executor == null)) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        assertNotInLayoutOrScroll(null);
+        mSizeProvider = provider;
+        mLineTableExecutor = executor;
+        invalidateLineTable(0);
+        requestLayout();
+        return this;
+    }
+
+    /**
+     * @return index of the line containing the item at {@param position}, or -1 if the line table is not ready
+     * @see #lineTable(SizeProvider, Executor)
+     */
+    public int lineOf(int position) {
+        LineTable table = mLineTable;
+        return table == null || position < 0 || position >= table.itemCount() ? -1 : table.line(position);
+    }
+
+    /**
+     * @return number of lines in the whole list, or -1 if the line table is not ready
+     * @see #lineTable(SizeProvider, Executor)
+     */
+    public int lineCount() {
+        LineTable table = mLineTable;
+        return table == null ? -1 : table.lineCount();
+    }
+
+    /**
+     * Keys of what items show, e. g. a hash of the text, so their sizes can be found in {@link FlowSizeStore}.
+     * Called on the main thread.
+     */
+    public interface ContentKeys {
+        /** @return key of the item content, or 0 not to store its size */
+        long contentKey(int position);
+    }
+
+    /**
+     * Keep measured item sizes in {@param store} across app launches. Items it knows are measured straight
+     * to the stored size, so the first layout breaks lines right away; their sizes are checked when the main thread is idle.
+     * @param keys what items show, or null with null store to disable
+     */
+    public FlowLayoutManager persistentSizes(@Nullable FlowSizeStore store, @Nullable ContentKeys keys) {
+        if ((store == null) != (keys == null)) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        assertNotInLayoutOrScroll(null);
+        mSizeStore = store;
+        mContentKeys = keys;
+        mStoreSalt = 0L;
+        return this;
+    }
+    @Nullable public FlowSizeStore persistentSizes() {
+        return mSizeStore;
+    }
+
+    /**
+     * Keep layout state in {@param store} under {@param key}, e. g. the id of the parent item when this is a nested flow.
+     * The state of the previous key is saved, and the one of the new key is restored: the first line at its offset,
+     * and known lines around it, followed when scrolling back instead of looking back.
+     * Without a saved state, the flow starts from the first item. Call after the adapter got items of the new parent.
+     * @param store states, or null with {@link RecyclerView#NO_ID} to stop keeping them
+     */
+    public FlowLayoutManager stateKey(@Nullable FlowStateStore store, long key) {
+        if ((store == null) != (key == RecyclerView.NO_ID)) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        assertNotInLayoutOrScroll(null);
+        if (store == mStateStore && key == mStateKey) return this;
+        saveState();
+        mStateStore = store;
+        mStateKey = key;
+        if (store == null) return this;
+
+        SavedLayout saved = store.get(key);
+        mLineBreaks.clear(); // of another parent item
+        mSizeCache.clear();
+        invalidateLineTable(0);
+        resetPreload();
+        mFirstLineInSection = -1;
+        if (saved == null) {
+            mFirstItemAdapterIndex = 0;
+            mFirstLineStartPosition = -1;
+            mFirstItemId = RecyclerView.NO_ID;
+            mPinnedToEnd = mStackFromEnd;
+        } else {
+            mFirstItemAdapterIndex = saved.mFirstItemAdapterIndex;
+            mFirstLineStartPosition = saved.mFirstLineStartPosition;
+            mFirstItemId = saved.mFirstItemId;
+            mPinnedToEnd = saved.mPinnedToEnd;
+            if (saved.mItemCount == getItemCount()) {
+                mFirstLineInSection = saved.mFirstLineInSection;
+                if (saved.mBreaks != null) mLineBreaks.add(saved.mBreaks.copy());
+            }
+        }
+        mStateSaved = saved != null;
+        relayout();
+        return this;
+    }
+    public long stateKey() {
+        return mStateKey;
+    }
+
+    /** Save the layout state under the current key, unless nothing changed since the last time. */
+    private void saveState() {
+        if (mStateStore == null || mStateSaved) return;
+        SavedLayout saved = new SavedLayout();
+        saved.mFirstItemAdapterIndex = mFirstItemAdapterIndex;
+        saved.mFirstLineStartPosition = mFirstLineStartPosition;
+        saved.mFirstLineInSection = mFirstLineInSection;
+        saved.mFirstItemId = mFirstItemId;
+        saved.mPinnedToEnd = mPinnedToEnd;
+        saved.mItemCount = getItemCount();
+        saved.mBreaks = mLineBreaks.isEmpty() ? null : mLineBreaks.get(0).copyAround(mFirstItemAdapterIndex, SavedLayout.MAX_LINES);
+        mStateStore.put(mStateKey, saved);
+        mStateSaved = true;
+    }
 
     /**
      * Returns number of hidden views, or -1 if the value is not known yet or ellipsize is disabled
@@ -281,11 +1610,26 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
         return mEllipsisCount;
     }
 
+    /**
+     * Number of items hidden in a collapsed section, to be shown by its ellipsis item, see {@link Section#maxLines(int, boolean)}.
+     * Call it when binding the ellipsis item. When the count changes, the item is rebound
+     * with {@link #ELLIPSIS_COUNT_CHANGED_PAYLOAD}, like the one of {@link #maxLines(int, boolean)}.
+     * @param position adapter position of the ellipsis item, i. e. the last one of the section
+     * @return number of hidden items, or -1 if the section is not collapsed or it is not known yet
+     */
+    public int sectionEllipsisCount(int position) {
+        if (position == mBindingSectionEllipsis) {
+            mSectionEllipsisAsked = true;
+            return mBindingSectionEllipsisCount;
+        }
+        return mSectionEllipsisCounts.get(position, -1);
+    }
+
     public FlowLayoutManager spacingBetweenItems(@Px int spacingBetweenItems) {
         if (spacingBetweenItems < 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
         assertNotInLayoutOrScroll(null);
         mSpacingBetweenItems = spacingBetweenItems;
-        requestLayout();
+        relayout();
         return this;
     }
     public int spacingBetweenItems() {
@@ -296,7 +1640,7 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
         if (spacingBetweenLines < 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
         assertNotInLayoutOrScroll(null);
         mSpacingBetweenLines = spacingBetweenLines;
-        requestLayout();
+        relayout();
         return this;
     }
     public int spacingBetweenLines() {
@@ -309,7 +1653,7 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
         assertNotInLayoutOrScroll(null);
         mSpacingBetweenItems = betweenItems;
         mSpacingBetweenLines = betweenLines;
-        requestLayout();
+        relayout();
         return this;
     }
 
@@ -325,7 +1669,7 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
             mGravity = gravity;
             mLayoutManagerHelper.mGravity = gravity;
 
-            requestLayout();
+            relayout();
         }
         return this;
     }
@@ -346,17 +1690,48 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
      */
     @NonNull
     private Line addLineToEnd(int startAdapterIndex, int start, RecyclerView.Recycler recycler, boolean lastLine) {
+        return addLineToEnd(startAdapterIndex, start, recycler, lastLine, -1, Integer.MAX_VALUE, nextLineInSection(startAdapterIndex));
+    }
+
+    /**
+     * @param at            index of the child to insert the first view at, or -1 to append
+     * @param limit         position to end the line at, at the latest
+     * @param lineInSection index of the line within its section
+     */
+    @NonNull
+    private Line addLineToEnd(
+        int startAdapterIndex, int start, RecyclerView.Recycler recycler, boolean lastLine, int at, int limit, int lineInSection) {
         Trace.beginSection("FLM#addLineToEnd");
+        long startNanos = mDebug ? System.nanoTime() : 0L;
+        int measures = mMeasureCount, binds = mBindCount;
+        enterSection(startAdapterIndex);
+        int firstChild = at < 0 ? getChildCount() : at;
         int currentAdapterIndex = startAdapterIndex;
         int currentLineSize = 0;
         int currentMaxValue = 0;
 
         Line line = new Line();
         line.mStartValueOfTheHighestItem = start;
-
-        while (line.mItemsCount != mMaxItemsInLine && currentAdapterIndex < contentItemCount()) {
-            final View view = attach(recycler, currentAdapterIndex, -1);
-            measureChildWithMargins(view, 0, 0);
+        line.mStartAdapterIndex = startAdapterIndex;
+        line.mLineInSection = lineInSection;
+
+        final LineTable table = mMaxLines == Integer.MAX_VALUE ? mLineTable : null;
+        int lineEnd = table == null ? contentItemCount() : table.start(table.line(startAdapterIndex) + 1);
+        lineEnd = Math.min(lineEnd, Math.min(limit, mCurrentContentEnd));
+        if (mStackFromEnd && !mLineBreaks.isEmpty()) {
+            // lines were wrapped backwards from the end, keep them when scrolling towards it
+            LineBreaks breaks = mLineBreaks.get(0);
+            int known = breaks.find(startAdapterIndex);
+            if (known >= 0 && breaks.start(known) == startAdapterIndex) lineEnd = Math.min(lineEnd, breaks.end(known));
+        }
+        if (!lastLine) {
+            int limitByBreaker = breakLine(startAdapterIndex);
+            if (limitByBreaker != Integer.MAX_VALUE) lineEnd = Math.min(lineEnd, startAdapterIndex + limitByBreaker);
+        }
+        while (line.mItemsCount != mCurrentMaxItems && currentAdapterIndex < lineEnd &&
+            (line.mItemsCount == 0 || !isLineStart(currentAdapterIndex))) {
+            final View view = attach(recycler, currentAdapterIndex, firstChild + line.mItemsCount);
+            line.mEstimated |= measure(view, currentAdapterIndex);
             final int widthOrHeight = measureInLine(currentLineSize, view);
             if (widthOrHeight == Integer.MIN_VALUE) {
                 detachAndScrapView(view, recycler);
@@ -364,42 +1739,111 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
             }
             final int heightOrWidth = mLayoutManagerHelper.getDecoratedMeasurement(view);
             currentMaxValue = measureLineForItem(currentMaxValue, line, heightOrWidth);
-            currentLineSize += widthOrHeight + mSpacingBetweenItems;
+            currentLineSize += widthOrHeight + mCurrentSpacing;
             currentAdapterIndex++;
         }
 
         if (lastLine && (mEllipsisCount = mEllipsize ? (contentItemCount() - currentAdapterIndex) : -1) > 0) {
             Trace.beginSection("FLM#addLineToEnd:ellipsize");
+            line.mEllipsized = true;
             RecyclerView rv = findRV();
-            View view = attach(recycler, contentItemCount(), -1);
-            bindAndMeasureEllipsis(view, rv);
+            View view = attach(recycler, contentItemCount(), firstChild + line.mItemsCount);
+            LayoutParams ellipsisLp = (LayoutParams) view.getLayoutParams();
+            if (ellipsisLp.mEllipsisGeneration != mEllipsisGeneration) { // the adapter has just bound it
+                ellipsisLp.mEllipsisGeneration = mEllipsisGeneration;
+                ellipsisLp.mBoundEllipsisCount = mEllipsisCount;
+            }
+            mEllipsisRebindPending = false;
+            measureEllipsis(view); // as it is bound now, it's rebound once the final count is known
             int widthOrHeight = mLayoutManagerHelper.getDecoratedMeasurementInOther(view);
             int heightOrWidth = mLayoutManagerHelper.getDecoratedMeasurement(view);
             currentMaxValue = measureLineForItem(currentMaxValue, line, heightOrWidth);
 
-//            boolean removed = false;
-            while (line.mItemsCount > mMaxItemsInLine ||
-                (currentLineSize + widthOrHeight > mLayoutManagerHelper.getLineSize()) && line.mItemsCount > 0) {
-                View victim = getChildAt(getChildCount() - 2); // pre-last child
-                currentLineSize -= mLayoutManagerHelper.getDecoratedMeasurementInOther(victim) + mSpacingBetweenItems;
-                line.mItemsCount--;
-                mEllipsisCount++;
-                detachAndScrapView(victim, recycler);
-
-                bindAndMeasureEllipsis(view, rv);
+            boolean removed = false;
+            while (true) {
+                while (line.mItemsCount > 1 && (line.mItemsCount > mCurrentMaxItems ||
+                    currentLineSize + widthOrHeight > mLayoutManagerHelper.getLineSize())) {
+                    View victim = getChildAt(firstChild + line.mItemsCount - 2); // pre-last child
+                    currentLineSize -= mLayoutManagerHelper.getDecoratedMeasurementInOther(victim) + mCurrentSpacing;
+                    line.mItemsCount--;
+                    mEllipsisCount++;
+                    detachAndScrapView(victim, recycler);
+                    removed = true;
+                }
+                // rebind once with the final count. Rarely, the new text doesn't fit anymore
+                if (ellipsisLp.mBoundEllipsisCount == mEllipsisCount) break;
+                bindEllipsis(view, rv);
+                measureEllipsis(view);
                 widthOrHeight = mLayoutManagerHelper.getDecoratedMeasurementInOther(view);
-//                removed = true;
+                removed = true;
             }
-//            if (removed) // TODO re-calculate currentMaxValue
-            currentLineSize += widthOrHeight + mSpacingBetweenItems;
+            if (removed) currentMaxValue = recomputeBiggest(line, firstChild);
+            currentLineSize += widthOrHeight + mCurrentSpacing;
             Trace.endSection();
+        } else if (mCurrentSectionEnd != Integer.MAX_VALUE && currentAdapterIndex != limit) {
+            if (currentAdapterIndex < mCurrentContentEnd && lineInSection + 1 >= mCurrentMaxLines) {
+                // collapse the section: hide the rest of it, or all but the last item which is its ellipsis
+                Trace.beginSection("FLM#addLineToEnd:collapse");
+                int hiddenFrom = currentAdapterIndex;
+                if (mCurrentEllipsize) {
+                    mBindingSectionEllipsis = mCurrentContentEnd;
+                    mBindingSectionEllipsisCount = mCurrentContentEnd - hiddenFrom;
+                    mSectionEllipsisAsked = false;
+                    View view = attach(recycler, mCurrentContentEnd, firstChild + line.mItemsCount);
+                    LayoutParams ellipsisLp = (LayoutParams) view.getLayoutParams();
+                    if (mSectionEllipsisAsked) ellipsisLp.mBoundEllipsisCount = mBindingSectionEllipsisCount; // just bound
+                    measureEllipsis(view); // as it is bound now, it's rebound once the final count is known
+                    int widthOrHeight = mLayoutManagerHelper.getDecoratedMeasurementInOther(view);
+                    currentMaxValue = measureLineForItem(currentMaxValue, line, mLayoutManagerHelper.getDecoratedMeasurement(view));
+                    boolean removed = false;
+                    while (true) {
+                        while (line.mItemsCount > 1 && (line.mItemsCount > mCurrentMaxItems ||
+                            currentLineSize + widthOrHeight > mLayoutManagerHelper.getLineSize())) {
+                            View victim = getChildAt(firstChild + line.mItemsCount - 2);
+                            currentLineSize -= mLayoutManagerHelper.getDecoratedMeasurementInOther(victim) + mCurrentSpacing;
+                            line.mItemsCount--;
+                            hiddenFrom--;
+                            detachAndScrapView(victim, recycler);
+                            removed = true;
+                        }
+                        mBindingSectionEllipsisCount = mCurrentContentEnd - hiddenFrom;
+                        if (ellipsisLp.mBoundEllipsisCount == mBindingSectionEllipsisCount) break;
+                        RecyclerView rv = findRV();
+                        rv.getAdapter().onBindViewHolder(
+                            rv.findContainingViewHolder(view), mCurrentContentEnd, ELLIPSIS_COUNT_CHANGED_PAYLOAD_LIST
+                        );
+                        ellipsisLp.mBoundEllipsisCount = mBindingSectionEllipsisCount;
+                        measureEllipsis(view);
+                        widthOrHeight = mLayoutManagerHelper.getDecoratedMeasurementInOther(view);
+                        removed = true;
+                    }
+                    mSectionEllipsisCounts.put(mCurrentContentEnd, mBindingSectionEllipsisCount);
+                    mBindingSectionEllipsis = -1;
+                    if (removed) currentMaxValue = recomputeBiggest(line, firstChild);
+                    currentLineSize += widthOrHeight + mCurrentSpacing;
+                }
+                line.mSkipped = mCurrentContentEnd - hiddenFrom;
+                Trace.endSection();
+            } else if (currentAdapterIndex == mCurrentContentEnd && mCurrentEllipsize) {
+                line.mSkipped = 1; // nothing to collapse, the ellipsis is not shown
+            }
         }
 
-        layoutItemsToEnd(currentLineSize - mSpacingBetweenItems, line);
+        layoutItemsToStart(currentLineSize - mCurrentSpacing, line, firstChild);
+        if (mDebug) stamp(line, Line.FORWARD, startNanos, measures, binds);
         Trace.endSection();
         return line;
     }
 
+    /** The highest item could be removed, or the ellipsis could change. */
+    private int recomputeBiggest(Line line, int firstChild) {
+        int currentMaxValue = 0;
+        for (int i = firstChild, end = firstChild + line.mItemsCount; i < end; i++)
+            currentMaxValue = Math.max(currentMaxValue, mLayoutManagerHelper.getDecoratedMeasurement(getChildAt(i)));
+        line.mEndValueOfTheHighestItem = line.mStartValueOfTheHighestItem + currentMaxValue;
+        return currentMaxValue;
+    }
+
     private static int measureLineForItem(int currentMaxValue, Line line, int heightOrWidth) {
         if (heightOrWidth > currentMaxValue) {
             currentMaxValue = heightOrWidth;
@@ -409,15 +1853,163 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
         return currentMaxValue;
     }
 
-    private RecyclerView findRV() {
-        View ch;
-        return (ch = getChildAt(0)) != null ? (RecyclerView) ch.getParent() : null;
-    }
-    private void bindAndMeasureEllipsis(View view, RecyclerView rv) {
-        rv.getAdapter().onBindViewHolder( // go crazy
-            rv.findContainingViewHolder(view), contentItemCount(), ELLIPSIS_COUNT_CHANGED_PAYLOAD_LIST
-        );
-        measureChildWithMargins(view, 0, 0);
+    private RecyclerView findRV() {
+        View ch;
+        return (ch = getChildAt(0)) != null ? (RecyclerView) ch.getParent() : null;
+    }
+    private void bindEllipsis(View view, RecyclerView rv) {
+        rv.getAdapter().onBindViewHolder( // go crazy
+            rv.findContainingViewHolder(view), contentItemCount(), ELLIPSIS_COUNT_CHANGED_PAYLOAD_LIST
+        );
+        ((LayoutParams) view.getLayoutParams()).mBoundEllipsisCount = mEllipsisCount;
+    }
+    private void measureEllipsis(View view) {
+        LayoutParams lp = (LayoutParams) view.getLayoutParams();
+        lp.mEstimatedWidth = -1;
+        measureChildWithMargins(view, 0, 0);
+        if (mDebug) mMeasureCount++;
+        lp.mNaturalSize = mLayoutManagerHelper.getMeasurementInOther(view);
+    }
+
+    /**
+     * Measure the view, or just take its cached or estimated size when flinging fast.
+     * Placeholders are measured to the estimated size. Views which were only moved are not measured while reordering.
+     * @return whether the view size is a guess: it was left unmeasured or it is a placeholder
+     */
+    private boolean measure(View view, int adapterPosition) {
+        LayoutParams lp = (LayoutParams) view.getLayoutParams();
+        lp.mStored = false;
+        int viewType = getItemViewType(view);
+        if (mDeferMeasureVelocity > 0 && mScrollState == RecyclerView.SCROLL_STATE_SETTLING &&
+            Math.abs(mScrollVelocity) >= mDeferMeasureVelocity) {
+            long size = mSizeCache.get(adapterPosition);
+            if (size == SizeCache.NONE) size = mSizeCache.estimate(viewType);
+            if (size != SizeCache.NONE) {
+                lp.mEstimatedWidth = SizeCache.width(size);
+                lp.mEstimatedHeight = SizeCache.height(size);
+                lp.mNaturalSize = mLayoutManagerHelper.getMeasurementInOther(view);
+                mHasEstimatedViews = true;
+                return true;
+            }
+        }
+        boolean placeholder = mPlaceholders != null && mPlaceholders.isPlaceholder(adapterPosition);
+        if (mReorderLineSize == mLayoutManagerHelper.getLineSize() && !placeholder &&
+            !mLayoutManagerHelper.shouldFillLine() && isClean(view)) {
+            // only moved while dragging, its measurement is still valid
+            mSizeCache.put(adapterPosition, viewType,
+                getDecoratedMeasuredWidth(view) + lp.leftMargin + lp.rightMargin,
+                getDecoratedMeasuredHeight(view) + lp.topMargin + lp.bottomMargin);
+            return false;
+        }
+        lp.mEstimatedWidth = -1;
+        long cached;
+        if (!placeholder && isClean(view) && (cached = mSizeCache.get(adapterPosition)) != SizeCache.NONE) {
+            // unchanged since it was measured with this line size, e. g. before the window was resized back
+            calculateItemDecorationsForChild(view, mTmpRect);
+            measureExactly(view, cached);
+            if (mDebug) mMeasureCount++;
+            lp.mNaturalSize = mLayoutManagerHelper.getMeasurementInOther(view);
+            return false;
+        }
+        long key = placeholder ? 0L : storeKey(view, adapterPosition, viewType);
+        long stored = key == 0L ? SizeCache.NONE : mSizeStore.get(key);
+        if (stored != SizeCache.NONE) {
+            // measured before, maybe in another session: skip wrap_content measurement, check it once when idle
+            calculateItemDecorationsForChild(view, mTmpRect);
+            measureExactly(view, stored);
+            if (mDebug) mMeasureCount++;
+            lp.mNaturalSize = mLayoutManagerHelper.getMeasurementInOther(view);
+            if (!mSizeStore.isChecked(key)) {
+                lp.mStored = true;
+                if (!mSizeCheckPending) {
+                    mSizeCheckPending = true;
+                    Looper.myQueue().addIdleHandler(mSizeChecker);
+                }
+            }
+            mSizeCache.put(adapterPosition, viewType, SizeCache.width(stored), SizeCache.height(stored));
+            return false;
+        }
+        if (placeholder) {
+            long size = mSizeCache.estimate(viewType);
+            if (size == SizeCache.NONE && mPlaceholderWidth >= 0) size = SizeCache.pack(mPlaceholderWidth, mPlaceholderHeight);
+            if (size != SizeCache.NONE) {
+                calculateItemDecorationsForChild(view, mTmpRect);
+                measureExactly(view, size);
+            } else {
+                measureChildWithMargins(view, 0, 0);
+            }
+            if (mDebug) mMeasureCount++;
+            lp.mNaturalSize = mLayoutManagerHelper.getMeasurementInOther(view);
+            return true; // not cached, and the line is not remembered
+        }
+        measureChildWithMargins(view, 0, 0);
+        if (mDebug) mMeasureCount++;
+        lp.mNaturalSize = mLayoutManagerHelper.getMeasurementInOther(view);
+        int width = getDecoratedMeasuredWidth(view) + lp.leftMargin + lp.rightMargin;
+        int height = getDecoratedMeasuredHeight(view) + lp.topMargin + lp.bottomMargin;
+        mSizeCache.put(adapterPosition, viewType, width, height);
+        if (key != 0L) mSizeStore.put(key, SizeCache.pack(width, height));
+        return false;
+    }
+
+    /** Measure the view to the decorated {@param size} with margins, its decorations must be up to date. */
+    private void measureExactly(View view, long size) {
+        LayoutParams lp = (LayoutParams) view.getLayoutParams();
+        int horizontal = getLeftDecorationWidth(view) + getRightDecorationWidth(view) + lp.leftMargin + lp.rightMargin;
+        int vertical = getTopDecorationHeight(view) + getBottomDecorationHeight(view) + lp.topMargin + lp.bottomMargin;
+        view.measure(
+            MeasureSpec.makeMeasureSpec(Math.max(0, SizeCache.width(size) - horizontal), MeasureSpec.EXACTLY),
+            MeasureSpec.makeMeasureSpec(Math.max(0, SizeCache.height(size) - vertical), MeasureSpec.EXACTLY)
+        );
+    }
+
+    /** @return key of the item size in {@link FlowSizeStore}, or 0 if it's not stored */
+    private long storeKey(View view, int position, int viewType) {
+        if (mSizeStore == null) return 0L;
+        long contentKey = mContentKeys.contentKey(position);
+        if (contentKey == 0L) return 0L;
+        if (mStoreSalt == 0L) {
+            Resources res = view.getResources();
+            mStoreSalt = FlowSizeStore.salt(res.getConfiguration().fontScale, res.getDisplayMetrics().densityDpi,
+                mOrientation, mLayoutManagerHelper.getLineSize());
+        }
+        return FlowSizeStore.key(contentKey, viewType, mStoreSalt);
+    }
+
+    /**
+     * Measure views which were measured to stored sizes as usual. If any size is wrong, fix it in the store and relayout.
+     */
+    void checkStoredSizes() {
+        mSizeCheckPending = false;
+        if (mSizeStore == null) return;
+        Trace.beginSection("FLM#checkStoredSizes");
+        boolean wrong = false;
+        for (int i = 0, count = getChildCount(); i < count; i++) {
+            View view = getChildAt(i);
+            LayoutParams lp = (LayoutParams) view.getLayoutParams();
+            if (!lp.mStored) continue;
+            lp.mStored = false;
+            long key = storeKey(view, getPosition(view), getItemViewType(view));
+            if (key == 0L) continue;
+            measureChildWithMargins(view, 0, 0);
+            long size = SizeCache.pack(
+                getDecoratedMeasuredWidth(view) + lp.leftMargin + lp.rightMargin,
+                getDecoratedMeasuredHeight(view) + lp.topMargin + lp.bottomMargin);
+            if (size != mSizeStore.get(key)) {
+                mSizeStore.put(key, size);
+                wrong = true;
+                continue;
+            }
+            mSizeStore.checked(key);
+            if (view.getMeasuredWidth() != view.getWidth() || view.getMeasuredHeight() != view.getHeight()) {
+                // stretched by FILL gravity
+                view.measure(
+                    MeasureSpec.makeMeasureSpec(view.getWidth(), MeasureSpec.EXACTLY),
+                    MeasureSpec.makeMeasureSpec(view.getHeight(), MeasureSpec.EXACTLY));
+            }
+        }
+        if (wrong) requestLayout();
+        Trace.endSection();
     }
 
     /**
@@ -430,6 +2022,9 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
     @NonNull
     private Line addLineToStart(int startAdapterIndex, int end, RecyclerView.Recycler recycler) {
         Trace.beginSection("FLM#addLineToStart");
+        long startNanos = mDebug ? System.nanoTime() : 0L;
+        int measures = mMeasureCount, binds = mBindCount;
+        enterSection(startAdapterIndex);
         int currentAdapterIndex = startAdapterIndex;
         int currentLineSize = 0;
         int currentMaxValue = 0;
@@ -437,9 +2032,19 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
         Line line = new Line();
         line.mEndValueOfTheHighestItem = end;
 
-        while (line.mItemsCount != mMaxItemsInLine && currentAdapterIndex >= 0) {
+        final LineTable table = mMaxLines == Integer.MAX_VALUE ? mLineTable : null;
+        int first = table == null ? 0 : table.start(table.line(startAdapterIndex));
+        if ((mLineBreaker != LineBreaker.GREEDY || mLookBack == LookBack.ADAPTIVE || mStateStore != null) &&
+            !mLineBreaks.isEmpty()) {
+            // can't break lines backwards, follow those broken forwards before
+            LineBreaks breaks = mLineBreaks.get(0);
+            int known = breaks.find(startAdapterIndex);
+            if (known >= 0 && breaks.end(known) == startAdapterIndex + 1) first = Math.max(first, breaks.start(known));
+        }
+        while (line.mItemsCount != mCurrentMaxItems && currentAdapterIndex >= first &&
+            (line.mItemsCount == 0 || !isLineStart(currentAdapterIndex + 1))) {
             final View view = attach(recycler, currentAdapterIndex, 0);
-            measureChildWithMargins(view, 0, 0);
+            line.mEstimated |= measure(view, currentAdapterIndex);
             final int widthOrHeight = measureInLine(currentLineSize, view);
             if (widthOrHeight == Integer.MIN_VALUE) {
                 detachAndScrapView(view, recycler);
@@ -451,39 +2056,154 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
                 line.mStartValueOfTheHighestItem = line.mEndValueOfTheHighestItem - currentMaxValue;
             }
             line.mItemsCount++;
-            currentLineSize += widthOrHeight + mSpacingBetweenItems;
+            currentLineSize += widthOrHeight + mCurrentSpacing;
             currentAdapterIndex--;
         }
+        line.mStartAdapterIndex = currentAdapterIndex + 1;
 
-        layoutItemsToStart(currentLineSize - mSpacingBetweenItems, line);
+        layoutItemsToStart(currentLineSize - mCurrentSpacing, line);
+        if (mDebug) stamp(line, Line.BACKWARD, startNanos, measures, binds);
         Trace.endSection();
         return line;
     }
 
+    /**
+     * Ask the line breaker about the line starting at {@param start},
+     * giving it cached or estimated sizes of items up to its lookahead.
+     * @return max number of items in the line, or {@link Integer#MAX_VALUE} if any number which fits
+     */
+    private int breakLine(int start) {
+        if (mLineBreaker == LineBreaker.GREEDY) return Integer.MAX_VALUE;
+        RecyclerView rv = findRV();
+        RecyclerView.Adapter<?> adapter = rv == null ? null : rv.getAdapter();
+        int lineSize = mLayoutManagerHelper.getLineSize(), lookahead = mLineBreaker.lookahead();
+        int end = Math.min(contentItemCount(), mCurrentContentEnd);
+        int[] sizes = mBreakSizes;
+        int count = 0, lines = 0, currentLineSize = 0, inLine = 0;
+        boolean last = true;
+        for (int position = start; position < end; position++) {
+            if (position != start && isLineStart(position)) break; // the rest doesn't affect this line
+            long size = mSizeCache.get(position);
+            if (size == SizeCache.NONE && adapter != null) {
+                int viewType = adapter.getItemViewType(position);
+                long key = storeKey(rv, position, viewType);
+                if (key != 0L) size = mSizeStore.get(key);
+                if (size == SizeCache.NONE) size = mSizeCache.estimate(viewType);
+            }
+            if (size == SizeCache.NONE) {
+                last = false;
+                break;
+            }
+            int widthOrHeight = mOrientation == VERTICAL ? SizeCache.width(size) : SizeCache.height(size);
+            if (inLine == mCurrentMaxItems || !fits(currentLineSize, widthOrHeight, lineSize)) {
+                if (++lines == lookahead) {
+                    last = false;
+                    break;
+                }
+                currentLineSize = inLine = 0;
+            }
+            currentLineSize += widthOrHeight + mCurrentSpacing;
+            inLine++;
+            if (count == sizes.length) sizes = mBreakSizes = Arrays.copyOf(sizes, count * 2);
+            sizes[count++] = widthOrHeight;
+        }
+        if (count == 0) return Integer.MAX_VALUE;
+
+        Trace.beginSection("FLM#breakLine");
+        int items = mLineBreaker.breakLine(sizes, 0, count, last, lineSize, mCurrentSpacing, mCurrentMaxItems);
+        Trace.endSection();
+        return Math.max(1, items);
+    }
+
+    private boolean isLineStart(int position) {
+        return (mExplicitBreaks != null && mExplicitBreaks.isLineStart(position)) ||
+            (mSections != null && mSections.sectionStart(position) == position);
+    }
+
+    /**
+     * Use configuration of the section containing {@param position} for the line being built.
+     */
+    private void enterSection(int position) {
+        Section section = mSections == null || position >= contentItemCount()
+            ? null : mSections.section(mSections.sectionStart(position));
+        mCurrentSpacing = section == null || section.mSpacingBetweenItems < 0 ? mSpacingBetweenItems : section.mSpacingBetweenItems;
+        mCurrentMaxItems = section == null || section.mMaxItemsInLine < 0 ? mMaxItemsInLine : section.mMaxItemsInLine;
+        mLayoutManagerHelper.mGravity = section == null || section.mGravity < 0 ? mGravity : section.mGravity;
+        mCurrentMaxLines = section == null ? Integer.MAX_VALUE : section.mMaxLines;
+        mCurrentEllipsize = section != null && section.mEllipsize;
+        mCurrentSectionEnd = section == null || !(section.isCollapsible() || section.mEllipsize)
+            ? Integer.MAX_VALUE : mSections.sectionEnd(position);
+        mCurrentContentEnd = mCurrentEllipsize ? mCurrentSectionEnd - 1 : mCurrentSectionEnd;
+    }
+
+    /** @return whether {@param position} is the ellipsis item of a section which is never collapsed, so it is hidden */
+    private boolean isHiddenEllipsis(int position) {
+        Section section;
+        return mSections != null && position < contentItemCount() &&
+            (section = mSections.section(mSections.sectionStart(position))) != null &&
+            section.mEllipsize && !section.isCollapsible() && mSections.sectionEnd(position) == position + 1;
+    }
+    /** @return whether lines of the section containing {@param position} are always wrapped from its start */
+    private boolean isCollapsible(int position) {
+        Section section;
+        return mSections != null && position < contentItemCount() &&
+            (section = mSections.section(mSections.sectionStart(position))) != null && section.isCollapsible();
+    }
+
+    /** @return index within its section of the line starting at {@param position} after the last attached one */
+    private int nextLineInSection(int position) {
+        if (mSections == null) return 0;
+        if (mCurrentLines.isEmpty()) return position == mFirstItemAdapterIndex ? Math.max(0, mFirstLineInSection) : 0;
+        Line last = mCurrentLines.get(mCurrentLines.size() - 1);
+        return last.end() == position && mSections.sectionStart(position) != position ? last.mLineInSection + 1 : 0;
+    }
+
     private int measureInLine(int currentLineSize, View view) {
         final int widthOrHeight = mLayoutManagerHelper.getDecoratedMeasurementInOther(view);
-        if (currentLineSize != 0 &&
-            currentLineSize + widthOrHeight > mLayoutManagerHelper.getLineSize()) {
-            return Integer.MIN_VALUE;
-        }
-        return widthOrHeight;
+        return fits(currentLineSize, widthOrHeight, mLayoutManagerHelper.getLineSize()) ? widthOrHeight : Integer.MIN_VALUE;
+    }
+
+    /**
+     * The wrapping rule: an item fits if it is the first one in line or there's enough space left.
+     * @param currentLineSize sizes of items already in line, each followed by spacing
+     */
+    static boolean fits(int currentLineSize, int widthOrHeight, int lineSize) {
+        return currentLineSize == 0 || currentLineSize + widthOrHeight <= lineSize;
     }
 
     private View attach(RecyclerView.Recycler recycler, int adapterPosition, int at) {
-        final View view = recycler.getViewForPosition(adapterPosition);
+        final View view = obtain(recycler, adapterPosition);
         addView(view, at);
         return view;
     }
+    private View obtain(RecyclerView.Recycler recycler, int adapterPosition) {
+        if (!mDebug) return recycler.getViewForPosition(adapterPosition);
+        int scrap = recycler.getScrapList().size();
+        View view = recycler.getViewForPosition(adapterPosition);
+        if (recycler.getScrapList().size() == scrap) mBindCount++; // bound, or taken from the view cache
+        return view;
+    }
+
+    /**
+     * Record how the line was built for {@link FlowDebugDecoration}.
+     */
+    private void stamp(Line line, int origin, long startNanos, int measures, int binds) {
+        line.mOrigin = origin;
+        line.mMeasures = mMeasureCount - measures;
+        line.mBinds = mBindCount - binds;
+        line.mBuildNanos = System.nanoTime() - startNanos;
+    }
 
     private void layoutItemsToEnd(int itemsSize, Line line) {
         int currentStart = mLayoutManagerHelper.getStartPositionOfFirstItem(itemsSize);
         int max = line.biggest();
         int childCount = getChildCount();
-        float fillMultiplier = mLayoutManagerHelper.shouldFillLine()
-            ? fillMultiplier(childCount - line.mItemsCount, childCount) : 1f;
+        int[] fillSizes = mLayoutManagerHelper.shouldFillLine()
+            ? fillSizes(line, childCount - line.mItemsCount) : null;
         for (int i = line.mItemsCount; i > 0; i--) {
-            currentStart += mSpacingBetweenItems + mLayoutManagerHelper
-                .layoutItem(max, line.mStartValueOfTheHighestItem, currentStart, childCount - i, fillMultiplier);
+            currentStart += mCurrentSpacing + mLayoutManagerHelper.layoutItem(
+                max, line.mStartValueOfTheHighestItem, currentStart, childCount - i,
+                fillSizes == null ? -1 : fillSizes[line.mItemsCount - i]);
         }
     }
     private void layoutItemsToStart(int itemsSize, Line line) {
@@ -492,24 +2212,41 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
     private void layoutItemsToStart(int itemsSize, Line line, int viewOffset) {
         int currentStart = mLayoutManagerHelper.getStartPositionOfFirstItem(itemsSize);
         int max = line.biggest();
-        float fillMultiplier = mLayoutManagerHelper.shouldFillLine()
-            ? fillMultiplier(viewOffset, viewOffset + line.mItemsCount) : 1f;
+        int[] fillSizes = mLayoutManagerHelper.shouldFillLine()
+            ? fillSizes(line, viewOffset) : null;
         for (int i = 0; i < line.mItemsCount; i++) {
-            currentStart += mSpacingBetweenItems + mLayoutManagerHelper
-                .layoutItem(max, line.mStartValueOfTheHighestItem, currentStart, viewOffset + i, fillMultiplier);
+            currentStart += mCurrentSpacing + mLayoutManagerHelper.layoutItem(
+                max, line.mStartValueOfTheHighestItem, currentStart, viewOffset + i,
+                fillSizes == null ? -1 : fillSizes[i]);
         }
     }
-    private float fillMultiplier(int startIndex, int endIndex) {
-        int sizeSum = 0;
-        int spaceSum = -mSpacingBetweenItems;
-        while (startIndex != endIndex) {
-            View child = getChildAt(startIndex++);
-            int size = mLayoutManagerHelper.getMeasurementInOther(child);
-            sizeSum += size;
-            spaceSum += mSpacingBetweenItems + mLayoutManagerHelper.getDecoratedMeasurementInOther(child) - size;
+    /**
+     * Calculate stretched sizes of line items proportionally to their natural sizes.
+     * Pixels lost to rounding go to the first items, one per item.
+     * @return stretched sizes (without decorations and margins), or null if natural ones fill the line exactly
+     */
+    private int[] fillSizes(Line line, int firstChild) {
+        int count = line.mItemsCount;
+        long sizeSum = 0;
+        int spaceSum = -mCurrentSpacing;
+        for (int i = 0; i < count; i++) {
+            View child = getChildAt(firstChild + i);
+            sizeSum += ((LayoutParams) child.getLayoutParams()).mNaturalSize;
+            spaceSum += mCurrentSpacing +
+                mLayoutManagerHelper.getDecoratedMeasurementInOther(child) - mLayoutManagerHelper.getMeasurementInOther(child);
         }
-        int avail = mLayoutManagerHelper.getLineSize() - spaceSum;
-        return (float) avail / sizeSum;
+        int avail = Math.max(0, mLayoutManagerHelper.getLineSize() - spaceSum);
+        if (sizeSum <= 0 || sizeSum == avail) return null;
+
+        int[] sizes = line.mFillSizes;
+        if (sizes == null || sizes.length < count) sizes = line.mFillSizes = new int[count];
+        int given = 0;
+        for (int i = 0; i < count; i++) {
+            View child = getChildAt(firstChild + i);
+            given += sizes[i] = (int) ((long) ((LayoutParams) child.getLayoutParams()).mNaturalSize * avail / sizeSum);
+        }
+        for (int i = 0; given < avail; i++, given++) sizes[i]++;
+        return sizes;
     }
 
     /**
@@ -527,49 +2264,114 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
 
         int startValueOfNewLine = line.mStartValueOfTheHighestItem - mSpacingBetweenLines;
 
-        boolean lookBack = mLookBack > 0;
         while (adapterViewIndex >= 0) {
-            int externallyAdded = 0;
             if (currentOffset <= offset) {
                 deleteLinesFromEnd(offset, recycler);
                 break;
             } else {
                 deleteLinesFromEnd(currentOffset, recycler);
-
-                if (lookBack) {
-                    externallyAdded = lookBack(adapterViewIndex, startValueOfNewLine, recycler);
-                }
             }
 
-            if (externallyAdded == 0) {
-                mCurrentLines.add(0, line = addLineToStart(adapterViewIndex, startValueOfNewLine, recycler));
-                adapterViewIndex -= line.mItemsCount;
-            } else {
-                for (int i = externallyAdded - 1; i >= 0; i--)
-                    adapterViewIndex -= (line = mCurrentLines.get(i)).mItemsCount;
-            }
+            addLinesToStart(adapterViewIndex, startValueOfNewLine, recycler);
+            line = mCurrentLines.get(0);
+            adapterViewIndex = line.mStartAdapterIndex - 1;
 
             startValueOfNewLine = line.mStartValueOfTheHighestItem - mSpacingBetweenLines;
             currentOffset = line.mStartValueOfTheHighestItem;
         }
         Trace.endSection();
-        return Math.max(currentOffset - mLayoutManagerHelper.getStartPadding(), offset);
+        return Math.min(0, Math.max(currentOffset - mLayoutManagerHelper.getStartPadding(), offset));
+    }
+    /**
+     * Add lines ending with the item at {@param position}: visible part of a collapsible section,
+     * lines of a lookBack section, or just one line.
+     * @return number of added lines
+     */
+    private int addLinesToStart(int position, int end, RecyclerView.Recycler recycler) {
+        if (isCollapsible(position)) return addSectionToStart(position, end, recycler);
+        boolean hiddenEllipsis = isHiddenEllipsis(position);
+        if (hiddenEllipsis) {
+            if (mSections.sectionStart(position) == position) return addSectionToStart(position, end, recycler); // nothing else
+            position--;
+        }
+        int added = useLookBack() && !isKnownLineEnd(position) ? lookBack(position, end, recycler) : 0;
+        if (added == 0) {
+            Line line = addLineToStart(position, end, recycler);
+            mCurrentLines.add(0, line);
+            remember(line);
+            added = 1;
+        }
+        if (hiddenEllipsis) mCurrentLines.get(added - 1).mSkipped = 1;
+        return added;
+    }
+    /**
+     * Lines of collapsible sections are wrapped from the section start, so the same items are hidden however they are reached.
+     * Add those of the section containing {@param position} up to it, the last one ending at {@param end}.
+     * @return number of added lines
+     */
+    private int addSectionToStart(int position, int end, RecyclerView.Recycler recycler) {
+        Trace.beginSection("FLM#addSectionToStart");
+        int limit = position + 1, at = 0, added = 0, start = 0;
+        for (int i = mSections.sectionStart(position); i < limit; ) {
+            Line line = addLineToEnd(i, start, recycler, false, at, limit, added);
+            mCurrentLines.add(added++, line);
+            at += line.mItemsCount;
+            start = line.mEndValueOfTheHighestItem + mSpacingBetweenLines;
+            i = line.end();
+        }
+        // laid out from zero, move them to the end
+        int offset = end - mCurrentLines.get(added - 1).mEndValueOfTheHighestItem;
+        for (int l = 0; l < added; l++) {
+            Line line = mCurrentLines.get(l);
+            line.offset(offset);
+            remember(line);
+        }
+        for (int v = 0; v < at; v++) mLayoutManagerHelper.offsetChild(getChildAt(v), offset);
+        Trace.endSection();
+        return added;
+    }
+    private boolean useLookBack() {
+        return mLookBack != LookBack.NONE && !mStackFromEnd && (mLineTable == null || mMaxLines != Integer.MAX_VALUE);
+    }
+    /**
+     * @return whether adaptive lookBack, or restored state, can just follow a line laid out before, ending with {@param position}
+     */
+    private boolean isKnownLineEnd(int position) {
+        if ((mLookBack != LookBack.ADAPTIVE && mStateStore == null) || mLineBreaks.isEmpty()) return false;
+        LineBreaks breaks = mLineBreaks.get(0);
+        int known = breaks.find(position);
+        return known >= 0 && breaks.end(known) == position + 1;
     }
     /** @return number of added lines */
     private int lookBack(int adapterViewIndex, int end, RecyclerView.Recycler recycler) {
         Trace.beginSection("FLM#lookBack");
+        boolean adaptive = mLookBack == LookBack.ADAPTIVE;
+        long startNanos = mDebug || adaptive ? System.nanoTime() : 0L;
+        int measures = mMeasureCount, binds = mBindCount;
+        enterSection(adapterViewIndex);
+        int depth = mLastLookBackDepth = adaptive ? mLookBackStats.depth(mLookBackBudgetNanos) : mLookBack;
 
         // go backwards adding all the necessary views for the chunk
         Trace.beginSection("gather");
         int lookedBack = 0;
-        while (adapterViewIndex - lookedBack >= 0 && lookedBack < mLookBack) {
-            View v = recycler.getViewForPosition(adapterViewIndex - lookedBack);
+        boolean complete = false;
+        while (lookedBack < depth) {
+            if (adapterViewIndex - lookedBack < 0) {
+                complete = true;
+                break;
+            }
+            View v = obtain(recycler, adapterViewIndex - lookedBack);
             if (mLayoutManagerHelper.getSizeInLine(v) == ViewGroup.LayoutParams.MATCH_PARENT) {
                 recycler.recycleView(v);
+                complete = true;
                 break;
             } else {
                 lookedBack++;
                 addView(v, 0);
+                if (isLineStart(adapterViewIndex - lookedBack + 1)) { // section start
+                    complete = true;
+                    break;
+                }
             }
         }
         Trace.endSection();
@@ -578,25 +2380,32 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
             Trace.endSection();
             return 0;
         }
+        int gathered = lookedBack;
 
         Trace.beginSection("measure");
         ArrayList<Integer> lineSizes = new ArrayList<>(); // fixme tmp
+        int firstAdapterIndex = adapterViewIndex - lookedBack + 1;
         int linesAdded = 0; { // now go forward and measure
             int currentLineSize = 0;
             int currentMaxValue = 0;
             Line line = new Line();
             line.mEndValueOfTheHighestItem = end;
+            line.mStartAdapterIndex = firstAdapterIndex;
+            int limit = breakLine(firstAdapterIndex);
             for (int i = 0; i < lookedBack; i++) {
                 View view = getChildAt(i);
-                measureChildWithMargins(view, 0, 0);
+                boolean estimated = measure(view, firstAdapterIndex + i);
                 int widthOrHeight = measureInLine(currentLineSize, view);
-                if (widthOrHeight == Integer.MIN_VALUE) {
+                if (widthOrHeight == Integer.MIN_VALUE || line.mItemsCount == limit ||
+                    (line.mItemsCount > 0 && isLineStart(firstAdapterIndex + i))) {
                     mCurrentLines.add(linesAdded++, line);
-                    lineSizes.add(currentLineSize - mSpacingBetweenItems);
+                    lineSizes.add(currentLineSize - mCurrentSpacing);
                     line = new Line();
                     line.mEndValueOfTheHighestItem = end;
+                    line.mStartAdapterIndex = firstAdapterIndex + i;
                     currentLineSize = currentMaxValue = 0;
                     widthOrHeight = mLayoutManagerHelper.getDecoratedMeasurementInOther(view);
+                    limit = breakLine(firstAdapterIndex + i);
                 }
                 final int heightOrWidth = mLayoutManagerHelper.getDecoratedMeasurement(view);
                 if (heightOrWidth > currentMaxValue) {
@@ -604,10 +2413,11 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
                     line.mStartValueOfTheHighestItem = line.mEndValueOfTheHighestItem - currentMaxValue;
                 }
                 line.mItemsCount++;
-                currentLineSize += widthOrHeight + mSpacingBetweenItems;
+                line.mEstimated |= estimated;
+                currentLineSize += widthOrHeight + mCurrentSpacing;
             }
             mCurrentLines.add(linesAdded++, line);
-            lineSizes.add(currentLineSize - mSpacingBetweenItems);
+            lineSizes.add(currentLineSize - mCurrentSpacing);
         }
         Trace.endSection();
 
@@ -619,9 +2429,14 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
                 line.offset(offset);
                 layoutItemsToStart(lineSizes.get(i), line, lookedBack -= line.mItemsCount);
                 offset -= line.biggest() + mSpacingBetweenLines;
+                remember(line);
+                if (mDebug) line.mOrigin = Line.LOOK_BACK;
             }
         }
         Trace.endSection();
+        // the whole pass goes to the line it was made for
+        if (mDebug) stamp(mCurrentLines.get(linesAdded - 1), Line.LOOK_BACK, startNanos, measures, binds);
+        if (adaptive) mLookBackStats.record(gathered, complete, System.nanoTime() - startNanos);
 
         Trace.endSection();
         return linesAdded;
@@ -660,7 +2475,7 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
 
         int endPadding = mLayoutManagerHelper.getEndPadding();
         int currentOffset = Math.max(0, line.mEndValueOfTheHighestItem - mLayoutManagerHelper.getEnd() + endPadding);
-        int adapterViewIndex = getPosition(getChildAt(getChildCount() - 1)) + 1;
+        int adapterViewIndex = line.end();
 
         int startValueOfNewLine = line.mEndValueOfTheHighestItem + mSpacingBetweenLines;
 
@@ -675,11 +2490,12 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
 
             line = addLineToEnd(adapterViewIndex, startValueOfNewLine, recycler, mCurrentLines.size() + 1 == mMaxLines);
             mCurrentLines.add(line);
+            remember(line);
 
             startValueOfNewLine = line.mEndValueOfTheHighestItem + mSpacingBetweenLines;
 
             currentOffset = Math.max(0, line.mEndValueOfTheHighestItem - mLayoutManagerHelper.getEnd());
-            adapterViewIndex += line.mItemsCount;
+            adapterViewIndex = line.end();
         }
         Trace.endSection();
         return Math.min(currentOffset, offset);
@@ -720,6 +2536,12 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
         if (getChildCount() <= 0 || delta == 0) return 0;
 
         Trace.beginSection("FLM#scrollBy");
+        mLookBackStats.newFrame();
+        mStateSaved = false;
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - mLastScrollTime;
+        mScrollVelocity = elapsed > 0 && elapsed < 100 ? delta * 1000f / elapsed : 0f;
+        mLastScrollTime = now;
         int offset = delta > 0
             ? addLinesToEndAndDeleteFromStart(delta, recycler)
             : addLinesToStartAndDeleteFromEnd(delta, recycler);
@@ -729,27 +2551,427 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
             mLayoutManagerHelper.offsetChildren(-offset);
         }
         updateScrollPosition();
+        if (mStackFromEnd) mPinnedToEnd = isAtEnd();
+        countViewTypes();
+        preload(delta > 0);
         Trace.endSection();
         return offset;
     }
 
+    @Override public void onScrollStateChanged(int state) {
+        mScrollState = state;
+        if (state == RecyclerView.SCROLL_STATE_IDLE) {
+            mScrollVelocity = 0f;
+            applyPoolSizes();
+            if (mHasEstimatedViews) {
+                // re-measure and lay out visible lines starting from the same first item at the same position
+                mHasEstimatedViews = false;
+                requestLayout();
+            }
+        }
+    }
+
     private void updateScrollPosition() {
         final View firstView = getChildAt(0);
 
         mFirstLineStartPosition = mLayoutManagerHelper.getDecoratedStart(firstView);
         mFirstItemAdapterIndex = getPosition(firstView);
+        mFirstLineInSection = mCurrentLines.isEmpty() ? -1 : mCurrentLines.get(0).mLineInSection;
+        rememberFirstItemId();
+    }
+
+    /**
+     * Moving focus across lines: pick the item of the adjacent line which overlaps the focused one the most.
+     */
+    @Override public View onInterceptFocusSearch(@NonNull View focused, int direction) {
+        int towards = lineDirection(direction);
+        View item;
+        if (towards == 0 || (item = findContainingItemView(focused)) == null) return null;
+        int line = lineOfPosition(getPosition(item));
+        if (line < 0) return null;
+        for (int l = line + towards, size = mCurrentLines.size(); l >= 0 && l < size; l += towards) {
+            View found = closestInLine(l, item);
+            if (found != null) return found;
+        }
+        return null; // RecyclerView will call onFocusSearchFailed
+    }
+
+    /**
+     * Focused item is in the first or the last attached line. Add just the next line and pick an item from it.
+     */
+    @Override public View onFocusSearchFailed(
+        @NonNull View focused, int direction, @NonNull RecyclerView.Recycler recycler, @NonNull RecyclerView.State state) {
+        int towards = lineDirection(direction);
+        View item;
+        if (towards == 0 || mCurrentLines.isEmpty() || (item = findContainingItemView(focused)) == null) return null;
+
+        Trace.beginSection("FLM#onFocusSearchFailed");
+        int line = -1;
+        if (towards > 0) {
+            Line last = mCurrentLines.get(mCurrentLines.size() - 1);
+            int next = last.end();
+            if (next < contentItemCount() && mCurrentLines.size() < mMaxLines) {
+                Line added = addLineToEnd(next, last.mEndValueOfTheHighestItem + mSpacingBetweenLines,
+                    recycler, mCurrentLines.size() + 1 == mMaxLines);
+                mCurrentLines.add(added);
+                remember(added);
+                line = mCurrentLines.size() - 1;
+            }
+        } else {
+            Line first = mCurrentLines.get(0);
+            int prev = first.mStartAdapterIndex - 1;
+            if (prev >= 0) {
+                line = addLinesToStart(prev, first.mStartValueOfTheHighestItem - mSpacingBetweenLines, recycler) - 1;
+            }
+        }
+        View found = line < 0 ? null : closestInLine(line, item);
+        Trace.endSection();
+        return found;
+    }
+
+    /** @return +1 for the next line, -1 for the previous one, 0 for moving within a line or unknown direction */
+    private int lineDirection(int direction) {
+        switch (direction) {
+            case View.FOCUS_DOWN: return mOrientation == VERTICAL ? 1 : 0;
+            case View.FOCUS_UP: return mOrientation == VERTICAL ? -1 : 0;
+            case View.FOCUS_RIGHT: return mOrientation == HORIZONTAL ? 1 : 0;
+            case View.FOCUS_LEFT: return mOrientation == HORIZONTAL ? -1 : 0;
+            default: return 0;
+        }
+    }
+
+    /** @return index of the attached line containing {@param position}, or -1 */
+    private int lineOfPosition(int position) {
+        int lo = 0, hi = mCurrentLines.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Line line = mCurrentLines.get(mid);
+            if (position < line.mStartAdapterIndex) hi = mid - 1;
+            else if (position >= line.end()) lo = mid + 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /** @return a focusable item of the {@param line} which overlaps {@param item} across the line the most, or null */
+    private View closestInLine(int line, View item) {
+        int first = 0;
+        for (int l = 0; l < line; l++) first += mCurrentLines.get(l).mItemsCount;
+        int start = mLayoutManagerHelper.getDecoratedStartInOther(item), end = mLayoutManagerHelper.getDecoratedEndInOther(item);
+        View best = null;
+        int bestOverlap = Integer.MIN_VALUE;
+        for (int i = first, last = Math.min(first + mCurrentLines.get(line).mItemsCount, getChildCount()); i < last; i++) {
+            View child = getChildAt(i);
+            if (!child.hasFocusable()) continue;
+            int overlap = Math.min(end, mLayoutManagerHelper.getDecoratedEndInOther(child)) -
+                Math.max(start, mLayoutManagerHelper.getDecoratedStartInOther(child)); // negative gap if not overlapping
+            if (overlap > bestOverlap) {
+                bestOverlap = overlap;
+                best = child;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Find the attached item under a point, searching lines first, then items of the line.
+     * @param x in RecyclerView coordinates
+     * @param y in RecyclerView coordinates
+     * @return adapter position of the item, or {@link RecyclerView#NO_POSITION}
+     */
+    public int findItemAt(float x, float y) {
+        boolean vertical = mOrientation == VERTICAL;
+        float value = vertical ? y : x, other = vertical ? x : y;
+        int line = lineAt(value, false);
+        if (line < 0) return RecyclerView.NO_POSITION;
+        Line l = mCurrentLines.get(line);
+        for (int i = firstChildOf(l), end = Math.min(i + l.mItemsCount, getChildCount()); i < end; i++) {
+            View child = getChildAt(i);
+            if (other >= mLayoutManagerHelper.getDecoratedStartInOther(child) &&
+                other < mLayoutManagerHelper.getDecoratedEndInOther(child) &&
+                value >= mLayoutManagerHelper.getDecoratedStart(child) &&
+                value < mLayoutManagerHelper.getDecoratedEnd(child)) return getPosition(child);
+        }
+        return RecyclerView.NO_POSITION;
+    }
+
+    /**
+     * Find where an item dropped at a point would go: before the first item of the closest line
+     * which is past the point along the line.
+     * To move an item from {@code from} there, use {@code slot > from ? slot - 1 : slot} as the destination.
+     * @param x in RecyclerView coordinates
+     * @param y in RecyclerView coordinates
+     * @return adapter position to insert before, up to item count, or {@link RecyclerView#NO_POSITION} if there are no lines
+     */
+    public int findInsertionSlot(float x, float y) {
+        boolean vertical = mOrientation == VERTICAL;
+        float other = vertical ? x : y;
+        int line = lineAt(vertical ? y : x, true);
+        if (line < 0) return RecyclerView.NO_POSITION;
+        Line l = mCurrentLines.get(line);
+        int first = firstChildOf(l), end = Math.min(first + l.mItemsCount, getChildCount());
+        boolean reversed = end - first > 1 && // RTL
+            mLayoutManagerHelper.getDecoratedStartInOther(getChildAt(first + 1)) <
+            mLayoutManagerHelper.getDecoratedStartInOther(getChildAt(first));
+        int slot = l.mStartAdapterIndex;
+        for (int i = first; i < end; i++) {
+            View child = getChildAt(i);
+            int position = getPosition(child);
+            if (position >= contentItemCount()) break; // ellipsis
+            float center = (mLayoutManagerHelper.getDecoratedStartInOther(child) +
+                mLayoutManagerHelper.getDecoratedEndInOther(child)) / 2f;
+            if (reversed ? other >= center : other <= center) break;
+            slot = position + 1;
+        }
+        return slot;
+    }
+
+    /**
+     * @param nearest whether to return the closest line when {@param value} is between lines or outside them
+     * @return index of the attached line containing {@param value} along scroll direction, or -1
+     */
+    private int lineAt(float value, boolean nearest) {
+        int size = mCurrentLines.size(), lo = 0, hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Line line = mCurrentLines.get(mid);
+            if (value < line.mStartValueOfTheHighestItem) hi = mid - 1;
+            else if (value >= line.mEndValueOfTheHighestItem) lo = mid + 1;
+            else return mid;
+        }
+        if (!nearest || size == 0) return -1;
+        if (lo >= size) return size - 1;
+        if (hi < 0) return 0;
+        return value - mCurrentLines.get(hi).mEndValueOfTheHighestItem <
+            mCurrentLines.get(lo).mStartValueOfTheHighestItem - value ? hi : lo;
+    }
+    private int firstChildOf(Line line) {
+        if (mSections == null) return line.mStartAdapterIndex - mCurrentLines.get(0).mStartAdapterIndex;
+        int first = 0; // collapsed sections have hidden items
+        for (int l = 0; mCurrentLines.get(l) != line; l++) first += mCurrentLines.get(l).mItemsCount;
+        return first;
+    }
+
+    private void preload(boolean forward) {
+        if (mPreloadListener == null || mCurrentLines.isEmpty()) return;
+        Line edge = mCurrentLines.get(forward ? mCurrentLines.size() - 1 : 0);
+        int position = forward ? edge.end() : edge.mStartAdapterIndex;
+        int key = forward ? position : ~position;
+        if (key == mPreloadEdge) return; // no new lines since last time
+        mPreloadEdge = key;
+
+        Trace.beginSection("FLM#preload");
+        Line first = mCurrentLines.get(0), last = mCurrentLines.get(mCurrentLines.size() - 1);
+        int itemsPerLine = Math.max(1, Math.round(
+            (float) (last.end() - first.mStartAdapterIndex) / mCurrentLines.size()));
+        int count = contentItemCount(), from = position, to = position;
+        for (int l = 0; l < mPreloadLines; l++) {
+            if (forward) {
+                if (to >= count) break;
+                KnownLine known = knownLineAfter(to);
+                to += known == null ? itemsPerLine : known.mItemsCount;
+            } else {
+                if (from <= 0) break;
+                KnownLine known = knownLineBefore(from);
+                from -= known == null ? itemsPerLine : known.mItemsCount;
+            }
+        }
+        from = Math.max(0, from);
+        to = Math.min(count, to);
+
+        if (from < mPreloadedTo && to > mPreloadedFrom) { // skip what's already announced
+            if (from >= mPreloadedFrom) from = mPreloadedTo;
+            else to = mPreloadedFrom;
+        }
+        if (from < to) {
+            if (to >= mPreloadedFrom && from <= mPreloadedTo && mPreloadedFrom != mPreloadedTo) {
+                mPreloadedFrom = Math.min(from, mPreloadedFrom);
+                mPreloadedTo = Math.max(to, mPreloadedTo);
+            } else {
+                mPreloadedFrom = from;
+                mPreloadedTo = to;
+            }
+            mPreloadListener.onPreload(from, to);
+        }
+        Trace.endSection();
+    }
+    private void resetPreload() {
+        mPreloadedFrom = mPreloadedTo = 0;
+        mPreloadEdge = Integer.MIN_VALUE;
+    }
+
+    // FlowDebugDecoration support
+
+    /** Start or stop recording per-line stats. Lines built before keep their stats, if any. */
+    void debug(boolean debug) {
+        mDebug = debug;
+    }
+    List<Line> attachedLines() {
+        return mCurrentLines;
+    }
+    int firstLineStartPosition() {
+        return mFirstLineStartPosition;
+    }
+
+    // FlowSnapHelper support
+
+    /** @return the first view of the attached line which starts the closest to the start edge, or null */
+    View findSnapView() {
+        int edge = mLayoutManagerHelper.getStartPadding();
+        int best = -1, bestDistance = Integer.MAX_VALUE, bestView = 0;
+        for (int l = 0, v = 0, size = mCurrentLines.size(); l < size; v += mCurrentLines.get(l++).mItemsCount) {
+            int distance = Math.abs(mCurrentLines.get(l).mStartValueOfTheHighestItem - edge);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = l;
+                bestView = v;
+            }
+        }
+        return best < 0 ? null : getChildAt(bestView);
+    }
+
+    /** @return distance from the start edge to the start of the line containing {@param view} */
+    int distanceToLineStart(View view) {
+        int line = lineOfPosition(getPosition(view));
+        return line < 0 ? 0 : mCurrentLines.get(line).mStartValueOfTheHighestItem - mLayoutManagerHelper.getStartPadding();
+    }
+
+    /**
+     * Predict the line which will start the closest to the start edge after scrolling by {@param distance}.
+     * Walks attached lines, then lines known from the line table or previous layouts, and extrapolates the rest.
+     * @return adapter position of its first item, or {@link RecyclerView#NO_POSITION}
+     */
+    int findSnapPosition(int distance) {
+        if (mCurrentLines.isEmpty()) return RecyclerView.NO_POSITION;
+        int target = mLayoutManagerHelper.getStartPadding() + distance;
+
+        int best = RecyclerView.NO_POSITION, bestDistance = Integer.MAX_VALUE;
+        for (int l = 0, size = mCurrentLines.size(); l < size; l++) {
+            Line line = mCurrentLines.get(l);
+            int d = Math.abs(line.mStartValueOfTheHighestItem - target);
+            if (d < bestDistance) {
+                bestDistance = d;
+                best = line.mStartAdapterIndex;
+            }
+        }
+
+        Line first = mCurrentLines.get(0), last = mCurrentLines.get(mCurrentLines.size() - 1);
+        int count = contentItemCount();
+        if (target > last.mStartValueOfTheHighestItem) {
+            int position = last.end();
+            int start = last.mEndValueOfTheHighestItem + mSpacingBetweenLines;
+            while (position < count && Math.abs(start - target) < bestDistance) {
+                bestDistance = Math.abs(start - target);
+                best = position;
+                KnownLine known = knownLineAfter(position);
+                if (known == null) return Math.min(count - 1, position + extrapolate(target - start));
+                position += known.mItemsCount;
+                start += known.mExtent + mSpacingBetweenLines;
+            }
+        } else if (target < first.mStartValueOfTheHighestItem) {
+            int position = first.mStartAdapterIndex;
+            int start = first.mStartValueOfTheHighestItem;
+            while (position > 0) {
+                KnownLine known = knownLineBefore(position);
+                if (known == null) return Math.max(0, position - extrapolate(start - target));
+                position -= known.mItemsCount;
+                start -= known.mExtent + mSpacingBetweenLines;
+                if (Math.abs(start - target) >= bestDistance) break;
+                bestDistance = Math.abs(start - target);
+                best = position;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Find the start of the next or the previous page, made of whole lines which fit into the viewport.
+     * @return adapter position of its first item, or {@link RecyclerView#NO_POSITION}
+     */
+    int findPagePosition(boolean forward) {
+        View snap = findSnapView();
+        if (snap == null) return RecyclerView.NO_POSITION;
+        int current = lineOfPosition(getPosition(snap));
+        Line line = mCurrentLines.get(current);
+        if (forward) {
+            // the first line which is not visible entirely
+            int end = mLayoutManagerHelper.getEnd() - mLayoutManagerHelper.getEndPadding();
+            for (int l = current + 1, size = mCurrentLines.size(); l < size; l++)
+                if (mCurrentLines.get(l).mEndValueOfTheHighestItem > end) return mCurrentLines.get(l).mStartAdapterIndex;
+            Line last = mCurrentLines.get(mCurrentLines.size() - 1);
+            int next = last.end();
+            return next < contentItemCount() ? next : last.mStartAdapterIndex;
+        } else {
+            // as many previous lines as fit
+            int space = mLayoutManagerHelper.getTotalSpace();
+            int position = line.mStartAdapterIndex, taken = -mSpacingBetweenLines;
+            while (position > 0) {
+                int l = lineOfPosition(position - 1);
+                KnownLine known = l >= 0
+                    ? mKnownLine.set(mCurrentLines.get(l).mItemsCount, mCurrentLines.get(l).biggest())
+                    : knownLineBefore(position);
+                if (known == null) {
+                    if (position == line.mStartAdapterIndex) position = Math.max(0, position - Math.max(1, extrapolate(space)));
+                    break;
+                }
+                taken += mSpacingBetweenLines + known.mExtent;
+                if (taken > space && position != line.mStartAdapterIndex) break;
+                position -= known.mItemsCount;
+            }
+            return position;
+        }
+    }
+
+    /** @return item count and extent of the line starting at {@param position}, valid until the next call, or null */
+    @Nullable private KnownLine knownLineAfter(int position) {
+        LineTable table = mLineTable;
+        if (table != null && position < table.itemCount()) {
+            int line = table.line(position);
+            if (table.start(line) == position) return mKnownLine.set(table.start(line + 1) - position, table.extent(line));
+        }
+        if (!mLineBreaks.isEmpty()) {
+            LineBreaks breaks = mLineBreaks.get(0);
+            int line = breaks.find(position);
+            if (line >= 0 && breaks.start(line) == position) return mKnownLine.set(breaks.count(line), breaks.extent(line));
+        }
+        return null;
+    }
+    /** @return item count and extent of the line ending before {@param position}, valid until the next call, or null */
+    @Nullable private KnownLine knownLineBefore(int position) {
+        LineTable table = mLineTable;
+        if (table != null && position <= table.itemCount()) {
+            int line = table.line(position - 1);
+            if (table.start(line + 1) == position)
+                return mKnownLine.set(position - table.start(line), table.extent(line));
+        }
+        if (!mLineBreaks.isEmpty()) {
+            LineBreaks breaks = mLineBreaks.get(0);
+            int line = breaks.find(position - 1);
+            if (line >= 0 && breaks.end(line) == position) return mKnownLine.set(breaks.count(line), breaks.extent(line));
+        }
+        return null;
+    }
+    /** @return estimated number of items within {@param distance} pixels, judging by attached lines */
+    private int extrapolate(int distance) {
+        Line first = mCurrentLines.get(0), last = mCurrentLines.get(mCurrentLines.size() - 1);
+        int lines = mCurrentLines.size();
+        float lineExtent = (float) (last.mEndValueOfTheHighestItem - first.mStartValueOfTheHighestItem + mSpacingBetweenLines) / lines;
+        float itemsPerLine = (float) (last.end() - first.mStartAdapterIndex) / lines;
+        return Math.round(Math.round(distance / lineExtent) * itemsPerLine);
     }
 
     @Override public boolean canScrollVertically() {
-        return mOrientation == VERTICAL;
+        return mOrientation == VERTICAL && mStaticKey == null;
     }
     @Override public boolean canScrollHorizontally() {
-        return mOrientation == HORIZONTAL;
+        return mOrientation == HORIZONTAL && mStaticKey == null;
     }
 
     @Override public void scrollToPosition(int position) {
         if (position >= 0 && position <= contentItemCount() - 1) {
+            mPinnedToEnd = position == contentItemCount() - 1;
             mFirstItemAdapterIndex = position;
+            mFirstLineInSection = -1;
             mFirstLineStartPosition = -1;
             requestLayout();
         }
@@ -770,6 +2992,88 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
         return mOrientation == HORIZONTAL ? new PointF(direction, 0) : new PointF(0, direction);
     }
 
+    @Override public void onAdapterChanged(RecyclerView.Adapter oldAdapter, RecyclerView.Adapter newAdapter) {
+        saveState(); // before items of another parent item come
+        // sections of another adapter don't change with its items
+        observeSections(isAttachedToWindow() && mSections instanceof ConcatSections &&
+            ((ConcatSections) mSections).mAdapter == newAdapter);
+        resetPreload();
+        mSectionEllipsisCounts.clear();
+        mFirstLineInSection = -1;
+        mMaxViewsByType.clear();
+        mSizeCache.clear();
+        mLineBreaks.clear();
+        invalidateLineTable(0);
+        mEllipsisGeneration++;
+        mKeepLines = 0;
+    }
+    @Override public void onItemsChanged(@NonNull RecyclerView recyclerView) {
+        saveState();
+        resetPreload();
+        mSectionEllipsisCounts.clear();
+        mFirstLineInSection = -1;
+        mSizeCache.clear();
+        mLineBreaks.clear();
+        invalidateLineTable(0);
+        mEllipsisGeneration++;
+        mKeepLines = 0;
+    }
+    @Override public void onItemsAdded(@NonNull RecyclerView recyclerView, int positionStart, int itemCount) {
+        resetPreload();
+        mSectionEllipsisCounts.clear(); // positions shift
+        mKeepLines = 0;
+        if (positionStart < mFirstItemAdapterIndex) mFirstLineInSection = -1;
+        if (positionStart < mFirstItemAdapterIndex) mFirstItemAdapterIndex += itemCount;
+        mSizeCache.insert(positionStart, itemCount);
+        invalidateLineTable(positionStart, positionStart + itemCount, itemCount);
+        for (int i = 0, size = mLineBreaks.size(); i < size; i++)
+            mLineBreaks.get(i).insert(positionStart, itemCount);
+    }
+    @Override public void onItemsRemoved(@NonNull RecyclerView recyclerView, int positionStart, int itemCount) {
+        resetPreload();
+        mSectionEllipsisCounts.clear(); // positions shift
+        mKeepLines = 0;
+        if (positionStart < mFirstItemAdapterIndex) mFirstLineInSection = -1;
+        if (positionStart + itemCount <= mFirstItemAdapterIndex) mFirstItemAdapterIndex -= itemCount;
+        else if (positionStart < mFirstItemAdapterIndex) mFirstItemAdapterIndex = positionStart;
+        mSizeCache.remove(positionStart, itemCount);
+        invalidateLineTable(positionStart, positionStart, -itemCount);
+        for (int i = 0, size = mLineBreaks.size(); i < size; i++)
+            mLineBreaks.get(i).remove(positionStart, itemCount);
+    }
+    @Override public void onItemsUpdated(@NonNull RecyclerView recyclerView, int positionStart, int itemCount) {
+        int ellipsis = contentItemCount();
+        if (positionStart <= ellipsis && ellipsis < positionStart + itemCount) mEllipsisGeneration++;
+        if (positionStart < mFirstItemAdapterIndex) mFirstLineInSection = -1;
+        mSizeCache.invalidate(positionStart, itemCount);
+        invalidateLineTable(positionStart, positionStart + itemCount, 0);
+        for (int i = 0, size = mLineBreaks.size(); i < size; i++)
+            mLineBreaks.get(i).invalidate(positionStart, itemCount);
+    }
+    @Override public void onItemsMoved(@NonNull RecyclerView recyclerView, int from, int to, int itemCount) {
+        resetPreload();
+        mSectionEllipsisCounts.clear(); // positions shift
+        mKeepLines = 0;
+        if (Math.min(from, to) < mFirstItemAdapterIndex) mFirstLineInSection = -1;
+        if (mReorderLineSize >= 0) {
+            // the first line keeps its place instead of following the dragged item
+        } else if (mFirstItemAdapterIndex >= from && mFirstItemAdapterIndex < from + itemCount) {
+            mFirstItemAdapterIndex += to - from;
+        } else {
+            if (mFirstItemAdapterIndex >= from + itemCount) mFirstItemAdapterIndex -= itemCount;
+            if (mFirstItemAdapterIndex >= to) mFirstItemAdapterIndex += itemCount;
+        }
+        // items in between are shifted
+        mSizeCache.remove(from, itemCount);
+        mSizeCache.insert(to, itemCount);
+        invalidateLineTable(Math.min(from, to), Math.max(from, to) + itemCount, 0);
+        for (int i = 0, size = mLineBreaks.size(); i < size; i++) {
+            LineBreaks breaks = mLineBreaks.get(i);
+            breaks.remove(from, itemCount);
+            breaks.insert(to, itemCount);
+        }
+    }
+
     private int contentItemCount() {
         return getItemCount() - (mEllipsize ? 1 : 0);
     }
@@ -777,7 +3081,7 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
     /**
      * Representation of line in RecyclerView.
      */
-    private final static class Line {
+    final static class Line {
 
         Line() {}
 
@@ -785,17 +3089,238 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
         int mEndValueOfTheHighestItem;
 
         int mItemsCount;
+        int mStartAdapterIndex;
+
+        boolean mEstimated;
+        boolean mEllipsized;
+
+        int[] mFillSizes;
+
+        /** Index of the line within its section, when it matters: for collapsible sections. */
+        int mLineInSection;
+        /** Number of hidden items after the attached ones, in a collapsed section. */
+        int mSkipped;
+        /** Some children changed size, see {@link #relayoutDirtyChildren(RecyclerView.Recycler, RecyclerView.State)}. */
+        boolean mResized;
+
+        static final int FORWARD = 0, BACKWARD = 1, LOOK_BACK = 2, REATTACHED = 3;
+        /** How the line was built, and what it cost. Recorded only for {@link FlowDebugDecoration}. */
+        int mOrigin;
+        int mMeasures, mBinds;
+        long mBuildNanos;
 
         int biggest() {
             return mEndValueOfTheHighestItem - mStartValueOfTheHighestItem;
         }
 
+        /** @return adapter position of the next line */
+        int end() {
+            return mStartAdapterIndex + mItemsCount + mSkipped;
+        }
+
         void offset(int offset) {
             mStartValueOfTheHighestItem += offset;
             mEndValueOfTheHighestItem += offset;
         }
     }
 
+    /**
+     * Layout params which can carry an estimated size of a view which was laid out without being measured.
+     */
+    public static class LayoutParams extends RecyclerView.LayoutParams {
+
+        /** Decorated size with margins, or -1 if the view is measured. */
+        int mEstimatedWidth = -1, mEstimatedHeight = -1;
+        /** Size in line before stretching by FILL gravity, without decorations and margins. */
+        int mNaturalSize;
+        /** Measured to a size from {@link FlowSizeStore}, not checked yet. */
+        boolean mStored;
+        /** Ellipsis count the view was bound with, valid while {@link #mEllipsisGeneration} is the current one. */
+        int mBoundEllipsisCount = -1, mEllipsisGeneration = -1;
+
+        public LayoutParams(Context c, AttributeSet attrs) {
+            super(c, attrs);
+        }
+        public LayoutParams(int width, int height) {
+            super(width, height);
+        }
+        public LayoutParams(ViewGroup.MarginLayoutParams source) {
+            super(source);
+        }
+        public LayoutParams(ViewGroup.LayoutParams source) {
+            super(source);
+        }
+        public LayoutParams(RecyclerView.LayoutParams source) {
+            super(source);
+        }
+
+        boolean isEstimated() {
+            return mEstimatedWidth >= 0;
+        }
+    }
+
+    /**
+     * Sections made of adapters of a {@link ConcatAdapter}, see {@link #sectionsOf(ConcatAdapter, Section...)}.
+     */
+    private static final class ConcatSections extends RecyclerView.AdapterDataObserver implements Sections {
+        private final ConcatAdapter mAdapter;
+        private final Section[] mSections;
+        private int[] mStarts; // adapter starts followed by the item count, null if stale
+        private boolean mObserving; // starts are cached only while observing the adapter
+
+        ConcatSections(ConcatAdapter adapter, Section[] sections) {
+            mAdapter = adapter;
+            mSections = sections;
+        }
+
+        /** Start or stop observing the adapter, by the layout manager while it is attached and uses these sections. */
+        void observe(boolean observe) {
+            if (mObserving == observe) return;
+            if (mObserving = observe) mAdapter.registerAdapterDataObserver(this);
+            else mAdapter.unregisterAdapterDataObserver(this);
+            mStarts = null;
+        }
+
+        @Override public void onChanged() {
+            mStarts = null;
+        }
+        @Override public void onItemRangeInserted(int positionStart, int itemCount) {
+            mStarts = null;
+        }
+        @Override public void onItemRangeRemoved(int positionStart, int itemCount) {
+            mStarts = null;
+        }
+        @Override public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+            mStarts = null;
+        }
+
+        private int[] starts() {
+            if (mStarts != null) return mStarts;
+            List<? extends RecyclerView.Adapter<? extends RecyclerView.ViewHolder>> adapters = mAdapter.getAdapters();
+            int[] starts = new int[adapters.size() + 1];
+            for (int a = 0; a < adapters.size(); a++) starts[a + 1] = starts[a] + adapters.get(a).getItemCount();
+            if (mObserving) mStarts = starts;
+            return starts;
+        }
+        /** @return index of the adapter containing {@param position} */
+        private int index(int position) {
+            int[] starts = starts();
+            int lo = 0, hi = starts.length - 2;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (starts[mid] <= position) lo = mid;
+                else hi = mid - 1;
+            }
+            return lo;
+        }
+
+        @Override public int sectionStart(int position) {
+            return starts()[index(position)];
+        }
+        @Override public int sectionEnd(int position) {
+            return starts()[index(position) + 1];
+        }
+        @Nullable @Override public Section section(int sectionStart) {
+            int index = index(sectionStart);
+            return index < mSections.length ? mSections[index] : null;
+        }
+    }
+
+    /**
+     * Layout state kept in {@link FlowStateStore}: the anchor and lines around it.
+     */
+    static final class SavedLayout {
+        static final int MAX_LINES = 64;
+
+        int mFirstItemAdapterIndex, mFirstLineStartPosition, mFirstLineInSection;
+        long mFirstItemId;
+        boolean mPinnedToEnd;
+        int mItemCount;
+        LineBreaks mBreaks; // for the line size etc. used then, or null
+    }
+
+    /**
+     * Creates ViewHolders for {@link #prewarmPool(boolean)} while the main thread is idle.
+     */
+    private static final class PoolWarmer implements MessageQueue.IdleHandler {
+        /** {@code RecycledViewPool.DEFAULT_MAX_SCRAP} */
+        static final int DEFAULT_POOL_SIZE = 5;
+
+        private final FlowLayoutManager mLayoutManager;
+
+        PoolWarmer(FlowLayoutManager lm) {
+            mLayoutManager = lm;
+        }
+
+        @Override public boolean queueIdle() {
+            return mLayoutManager.prewarmOne(mLayoutManager.findRV());
+        }
+    }
+
+    /**
+     * Lengths of sections seen by lookBack and its cost per item, to choose {@link LookBack#ADAPTIVE} depth.
+     */
+    private static final class LookBackStats {
+        static final int SAMPLES = 32;
+        static final int DEFAULT_DEPTH = 100; // until the cost is known
+
+        private final int[] mLengths = new int[SAMPLES], mSorted = new int[SAMPLES];
+        private int mSamples;
+        private long mNanosPerItem; // moving average, 0 if unknown
+        private long mSpentNanos; // in this frame
+
+        /**
+         * @param complete whether the pass reached the section start, otherwise the section is longer than {@param length}
+         */
+        void record(int length, boolean complete, long nanos) {
+            // a cut section asks for a deeper look next time, if the budget allows
+            mLengths[mSamples++ % SAMPLES] = complete ? length : (int) Math.min(Integer.MAX_VALUE / 2, 2L * length);
+            long perItem = Math.max(1L, nanos / length);
+            mNanosPerItem = mNanosPerItem == 0L ? perItem : (mNanosPerItem * 7 + perItem) / 8;
+            mSpentNanos += nanos;
+        }
+
+        /** @return depth covering 90% of recent sections, or any depth, if it fits into the rest of the frame budget */
+        int depth(long budgetNanos) {
+            int typical = Integer.MAX_VALUE, samples = Math.min(mSamples, SAMPLES);
+            if (samples > 0) {
+                System.arraycopy(mLengths, 0, mSorted, 0, samples);
+                Arrays.sort(mSorted, 0, samples);
+                typical = mSorted[(samples * 9 - 1) / 10];
+            }
+            int affordable = mNanosPerItem == 0L ? DEFAULT_DEPTH
+                : (int) Math.min(Integer.MAX_VALUE, Math.max(0L, budgetNanos - mSpentNanos) / mNanosPerItem);
+            return Math.min(typical, affordable);
+        }
+
+        void newFrame() {
+            mSpentNanos = 0L;
+        }
+    }
+
+    /**
+     * A line known from the line table or previous layouts, see {@link #knownLineAfter(int)}.
+     */
+    private static final class KnownLine {
+        int mItemsCount, mExtent;
+
+        KnownLine set(int itemsCount, int extent) {
+            mItemsCount = itemsCount;
+            mExtent = extent;
+            return this;
+        }
+    }
+
+    /**
+     * Forgets the ellipsis count a view was bound with once it goes to the pool, it's bound anew when it comes back.
+     */
+    private static final class EllipsisRecyclerListener implements RecyclerView.RecyclerListener {
+        @Override public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
+            ViewGroup.LayoutParams lp = holder.itemView.getLayoutParams();
+            if (lp instanceof LayoutParams) ((LayoutParams) lp).mEllipsisGeneration = -1;
+        }
+    }
+
     /**
      * Orientation and gravity helper.
      */
@@ -823,6 +3348,8 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
 
         abstract int getDecoratedStart(View view);
         abstract int getDecoratedEnd(View view);
+        abstract int getDecoratedStartInOther(View view);
+        abstract int getDecoratedEndInOther(View view);
 
         abstract int getDecoratedMeasurement(View view);
         abstract int getDecoratedMeasurementInOther(View view);
@@ -833,12 +3360,17 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
         abstract int getStartPositionOfFirstItem(int itemsSize);
 
         abstract boolean shouldFillLine();
-        abstract int layoutItem(int maxItemHeightOrWidth, int startValueOfTheHighestItem, int currentStart, int viewAt, float fillMultiplier);
+        /** @param fillSize size to stretch the item to, or -1 */
+        abstract int layoutItem(int maxItemHeightOrWidth, int startValueOfTheHighestItem, int currentStart, int viewAt, int fillSize);
 
         abstract void offsetChildren(int amount);
+        abstract void offsetChild(View view, int amount);
 
         abstract boolean isFinite();
 
+        /** @return measure spec mode of the layout manager size in scroll direction */
+        abstract int getModeInScrollDirection();
+
         static LMHelper createLayoutManagerHelper(RecyclerView.LayoutManager layoutManager, int orientation, int gravity) {
             switch (orientation) {
                 case VERTICAL: return new VHelper(layoutManager, gravity);
@@ -876,17 +3408,31 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
                 RecyclerView.LayoutParams params = (RecyclerView.LayoutParams) view.getLayoutParams();
                 return this.mLayoutManager.getDecoratedBottom(view) + params.bottomMargin;
             }
+            @Override int getDecoratedStartInOther(View view) {
+                RecyclerView.LayoutParams params = (RecyclerView.LayoutParams) view.getLayoutParams();
+                return this.mLayoutManager.getDecoratedLeft(view) - params.leftMargin;
+            }
+            @Override int getDecoratedEndInOther(View view) {
+                RecyclerView.LayoutParams params = (RecyclerView.LayoutParams) view.getLayoutParams();
+                return this.mLayoutManager.getDecoratedRight(view) + params.rightMargin;
+            }
 
             @Override int getDecoratedMeasurement(View view) {
-                final RecyclerView.LayoutParams params = (RecyclerView.LayoutParams) view.getLayoutParams();
-                return mLayoutManager.getDecoratedMeasuredHeight(view) + params.topMargin + params.bottomMargin;
+                final LayoutParams params = (LayoutParams) view.getLayoutParams();
+                return params.isEstimated() ? params.mEstimatedHeight :
+                    mLayoutManager.getDecoratedMeasuredHeight(view) + params.topMargin + params.bottomMargin;
             }
             @Override int getDecoratedMeasurementInOther(View view) {
-                final RecyclerView.LayoutParams params = (RecyclerView.LayoutParams) view.getLayoutParams();
-                return mLayoutManager.getDecoratedMeasuredWidth(view) + params.leftMargin + params.rightMargin;
+                final LayoutParams params = (LayoutParams) view.getLayoutParams();
+                return params.isEstimated() ? params.mEstimatedWidth :
+                    mLayoutManager.getDecoratedMeasuredWidth(view) + params.leftMargin + params.rightMargin;
             }
             @Override int getMeasurementInOther(View view) {
-                return view.getMeasuredWidth();
+                final LayoutParams params = (LayoutParams) view.getLayoutParams();
+                return params.isEstimated()
+                    ? params.mEstimatedWidth - params.leftMargin - params.rightMargin -
+                        mLayoutManager.getLeftDecorationWidth(view) - mLayoutManager.getRightDecorationWidth(view)
+                    : view.getMeasuredWidth();
             }
 
             @Override int getSizeInLine(View view) {
@@ -909,12 +3455,16 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
                 return (mGravity & Gravity.HORIZONTAL_GRAVITY_MASK) == Gravity.FILL_HORIZONTAL;
             }
             @Override int layoutItem(
-                int maxItemHeightOrWidth, int startValueOfTheHighestItem, int currentStart, int viewAt, float fillMultiplier) {
+                int maxItemHeightOrWidth, int startValueOfTheHighestItem, int currentStart, int viewAt, int fillSize) {
                 View view = mLayoutManager.getChildAt(viewAt);
-                if (fillMultiplier != 1f) view.measure(
-                    MeasureSpec.makeMeasureSpec((int) (view.getMeasuredWidth() * fillMultiplier), MeasureSpec.EXACTLY),
-                    MeasureSpec.makeMeasureSpec(view.getMeasuredHeight(), MeasureSpec.EXACTLY)
-                );
+                LayoutParams params = (LayoutParams) view.getLayoutParams();
+                if (fillSize >= 0) { // stretched by FILL gravity
+                    if (params.isEstimated()) params.mEstimatedWidth += fillSize - getMeasurementInOther(view);
+                    else if (fillSize != view.getMeasuredWidth()) view.measure(
+                        MeasureSpec.makeMeasureSpec(fillSize, MeasureSpec.EXACTLY),
+                        MeasureSpec.makeMeasureSpec(view.getMeasuredHeight(), MeasureSpec.EXACTLY)
+                    );
+                }
                 final int width = getDecoratedMeasurementInOther(view);
                 final int height = getDecoratedMeasurement(view);
 
@@ -940,10 +3490,17 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
             @Override void offsetChildren(int amount) {
                 mLayoutManager.offsetChildrenVertical(amount);
             }
+            @Override void offsetChild(View view, int amount) {
+                view.offsetTopAndBottom(amount);
+            }
 
             @Override boolean isFinite() {
                 return mLayoutManager.getHeight() != 0 || mLayoutManager.getHeightMode() != MeasureSpec.UNSPECIFIED;
             }
+
+            @Override int getModeInScrollDirection() {
+                return mLayoutManager.getHeightMode();
+            }
         }
 
         private static final class HHelper extends LMHelper {
@@ -976,17 +3533,31 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
                 RecyclerView.LayoutParams params = (RecyclerView.LayoutParams) view.getLayoutParams();
                 return this.mLayoutManager.getDecoratedRight(view) + params.rightMargin;
             }
+            @Override int getDecoratedStartInOther(View view) {
+                RecyclerView.LayoutParams params = (RecyclerView.LayoutParams) view.getLayoutParams();
+                return this.mLayoutManager.getDecoratedTop(view) - params.topMargin;
+            }
+            @Override int getDecoratedEndInOther(View view) {
+                RecyclerView.LayoutParams params = (RecyclerView.LayoutParams) view.getLayoutParams();
+                return this.mLayoutManager.getDecoratedBottom(view) + params.bottomMargin;
+            }
 
             @Override int getDecoratedMeasurement(View view) {
-                final RecyclerView.LayoutParams params = (RecyclerView.LayoutParams) view.getLayoutParams();
-                return mLayoutManager.getDecoratedMeasuredWidth(view) + params.leftMargin + params.rightMargin;
+                final LayoutParams params = (LayoutParams) view.getLayoutParams();
+                return params.isEstimated() ? params.mEstimatedWidth :
+                    mLayoutManager.getDecoratedMeasuredWidth(view) + params.leftMargin + params.rightMargin;
             }
             @Override int getDecoratedMeasurementInOther(View view) {
-                final RecyclerView.LayoutParams params = (RecyclerView.LayoutParams) view.getLayoutParams();
-                return mLayoutManager.getDecoratedMeasuredHeight(view) + params.topMargin + params.bottomMargin;
+                final LayoutParams params = (LayoutParams) view.getLayoutParams();
+                return params.isEstimated() ? params.mEstimatedHeight :
+                    mLayoutManager.getDecoratedMeasuredHeight(view) + params.topMargin + params.bottomMargin;
             }
             @Override int getMeasurementInOther(View view) {
-                return view.getMeasuredHeight();
+                final LayoutParams params = (LayoutParams) view.getLayoutParams();
+                return params.isEstimated()
+                    ? params.mEstimatedHeight - params.topMargin - params.bottomMargin -
+                        mLayoutManager.getTopDecorationHeight(view) - mLayoutManager.getBottomDecorationHeight(view)
+                    : view.getMeasuredHeight();
             }
 
             @Override int getSizeInLine(View view) {
@@ -1009,12 +3580,16 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
                 return (mGravity & Gravity.VERTICAL_GRAVITY_MASK) == Gravity.FILL_VERTICAL;
             }
             @Override int layoutItem(
-                int maxItemHeightOrWidth, int startValueOfTheHighestItem, int currentStart, int viewAt, float fillMultiplier) {
+                int maxItemHeightOrWidth, int startValueOfTheHighestItem, int currentStart, int viewAt, int fillSize) {
                 View view = mLayoutManager.getChildAt(viewAt);
-                if (fillMultiplier != 1f) view.measure(
-                    MeasureSpec.makeMeasureSpec(view.getMeasuredWidth(), MeasureSpec.EXACTLY),
-                    MeasureSpec.makeMeasureSpec((int) (view.getMeasuredHeight() * fillMultiplier), MeasureSpec.EXACTLY)
-                );
+                LayoutParams params = (LayoutParams) view.getLayoutParams();
+                if (fillSize >= 0) { // stretched by FILL gravity
+                    if (params.isEstimated()) params.mEstimatedHeight += fillSize - getMeasurementInOther(view);
+                    else if (fillSize != view.getMeasuredHeight()) view.measure(
+                        MeasureSpec.makeMeasureSpec(view.getMeasuredWidth(), MeasureSpec.EXACTLY),
+                        MeasureSpec.makeMeasureSpec(fillSize, MeasureSpec.EXACTLY)
+                    );
+                }
                 final int height = getDecoratedMeasurementInOther(view);
                 final int width = getDecoratedMeasurement(view);
 
@@ -1041,10 +3616,17 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
             @Override void offsetChildren(int amount) {
                 mLayoutManager.offsetChildrenHorizontal(amount);
             }
+            @Override void offsetChild(View view, int amount) {
+                view.offsetLeftAndRight(amount);
+            }
 
             @Override boolean isFinite() {
                 return mLayoutManager.getWidth() != 0 || mLayoutManager.getWidthMode() != MeasureSpec.UNSPECIFIED;
             }
+
+            @Override int getModeInScrollDirection() {
+                return mLayoutManager.getWidthMode();
+            }
         }
     }
 
@@ -1111,6 +3693,13 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
 
     private int computeScrollOffset(RecyclerView.State state) {
         if (getChildCount() == 0 || state.getItemCount() == 0) return 0;
+        LineTable table = mLineTable;
+        if (mSmoothScrollbarEnabled && table != null && !mCurrentLines.isEmpty()) {
+            Line first = mCurrentLines.get(0);
+            if (first.mStartAdapterIndex < table.itemCount())
+                return table.offset(table.line(first.mStartAdapterIndex)) +
+                    mLayoutManagerHelper.getStartPadding() - first.mStartValueOfTheHighestItem;
+        }
         return computeScrollOffset(state,
             findFirstVisibleChildClosestToStart(!mSmoothScrollbarEnabled),
             findFirstVisibleChildClosestToEnd(!mSmoothScrollbarEnabled),
@@ -1119,6 +3708,7 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
 
     private int computeScrollExtent(RecyclerView.State state) {
         if (getChildCount() == 0 || state.getItemCount() == 0) return 0;
+        if (mSmoothScrollbarEnabled && mLineTable != null) return mLayoutManagerHelper.getTotalSpace();
         return computeScrollExtent(state,
             findFirstVisibleChildClosestToStart(!mSmoothScrollbarEnabled),
             findFirstVisibleChildClosestToEnd(!mSmoothScrollbarEnabled),
@@ -1127,6 +3717,8 @@ public class FlowLayoutManager extends RecyclerView.LayoutManager implements Rec
 
     private int computeScrollRange(RecyclerView.State state) {
         if (getChildCount() == 0 || state.getItemCount() == 0) return 0;
+        LineTable table = mLineTable;
+        if (mSmoothScrollbarEnabled && table != null) return table.totalExtent();
         return computeScrollRange(state,
             findFirstVisibleChildClosestToStart(!mSmoothScrollbarEnabled),
             findFirstVisibleChildClosestToEnd(!mSmoothScrollbarEnabled),
@@ -0,0 +1,342 @@
+package ru.astrocode.flm;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.util.SparseArray;
+import android.view.View;
+import android.view.ViewGroup;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.Px;
+import androidx.recyclerview.widget.RecyclerView;
+import java.util.ArrayList;
+
+/**
+ * Shows a dense flow as rows: one item per line, which holds item views of the line.
+ * RecyclerView then attaches, offsets, and recycles lines instead of items,
+ * so child count and animator bookkeeping scale with the number of lines.
+ * Use with a vertical layout manager, e. g. {@code LinearLayoutManager}: rows span the RecyclerView width.
+ * <p>
+ * Lines are broken by {@link FlowCalculator} on the main thread, using sizes from {@link FlowLayoutManager.SizeProvider}
+ * which must be exact, like for {@link FlowLayoutManager#lineTable(FlowLayoutManager.SizeProvider, java.util.concurrent.Executor)}.
+ * Item views are created and bound by the wrapped adapter. A row keeps its item views while recycled,
+ * and rows holding the same items are not rebound after adapter changes.
+ * Bound item holders don't belong to a RecyclerView: their position is {@link RecyclerView.ViewHolder#getLayoutPosition()}.
+ */
+public class FlowRowAdapter<VH extends RecyclerView.ViewHolder> extends RecyclerView.Adapter<FlowRowAdapter.RowHolder> {
+
+    private final static String ERROR_BAD_ARGUMENT = "Inappropriate field value!";
+
+    private final RecyclerView.Adapter<VH> mItems;
+    private final FlowLayoutManager.SizeProvider mSizes;
+    private final FlowCalculator mCalculator = new FlowCalculator();
+    private int mSpacingBetweenItems, mSpacingBetweenLines;
+    private int mMaxItemsInLine = Integer.MAX_VALUE;
+    private FlowLayoutManager.LineBreaker mLineBreaker = FlowLayoutManager.LineBreaker.GREEDY;
+    private FlowLayoutManager.ExplicitBreaks mExplicitBreaks;
+
+    private int mLineSize;
+    private int[] mSizesInLine = new int[0], mSizesAcross = new int[0];
+    private int[] mOldStarts = new int[16];
+    private final SparseArray<ArrayList<RecyclerView.ViewHolder>> mScrap = new SparseArray<>();
+
+    public FlowRowAdapter(@NonNull RecyclerView.Adapter<VH> items, @NonNull FlowLayoutManager.SizeProvider sizes) {
+        mItems = items;
+        mSizes = sizes;
+    }
+
+    public FlowRowAdapter<VH> spacing(@Px int betweenItems, @Px int betweenLines) {
+        if (betweenItems < 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        if (betweenLines < 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        mSpacingBetweenItems = betweenItems;
+        mSpacingBetweenLines = betweenLines;
+        relayout();
+        return this;
+    }
+    public int spacingBetweenItems() {
+        return mSpacingBetweenItems;
+    }
+    public int spacingBetweenLines() {
+        return mSpacingBetweenLines;
+    }
+
+    public FlowRowAdapter<VH> maxItemsInLine(int maxItemsInLine) {
+        if (maxItemsInLine <= 0) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        mMaxItemsInLine = maxItemsInLine;
+        relayout();
+        return this;
+    }
+    public int maxItemsInLine() {
+        return mMaxItemsInLine;
+    }
+
+    /**
+     * @see FlowLayoutManager#lineBreaker(FlowLayoutManager.LineBreaker)
+     */
+    public FlowRowAdapter<VH> lineBreaker(@NonNull FlowLayoutManager.LineBreaker breaker) {
+        mLineBreaker = breaker;
+        relayout();
+        return this;
+    }
+    @NonNull public FlowLayoutManager.LineBreaker lineBreaker() {
+        return mLineBreaker;
+    }
+
+    /**
+     * @see FlowLayoutManager#explicitBreaks(FlowLayoutManager.ExplicitBreaks)
+     */
+    public FlowRowAdapter<VH> explicitBreaks(@Nullable FlowLayoutManager.ExplicitBreaks breaks) {
+        mExplicitBreaks = breaks;
+        relayout();
+        return this;
+    }
+    @Nullable public FlowLayoutManager.ExplicitBreaks explicitBreaks() {
+        return mExplicitBreaks;
+    }
+
+    /** @return the row showing item at {@param position}, or -1 if lines are not known yet */
+    public int rowOf(int position) {
+        if (position < 0 || position >= mItems.getItemCount()) throw new IndexOutOfBoundsException();
+        int lo = 0, hi = mCalculator.lineCount() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mCalculator.lineStart(mid) <= position) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        return hi;
+    }
+
+    /** @return position of the first item in {@param row} */
+    public int rowStart(int row) {
+        return mCalculator.lineStart(row);
+    }
+
+    private int rowEnd(int row) {
+        return row + 1 < mCalculator.lineCount() ? mCalculator.lineStart(row + 1) : mCalculator.laidOutCount();
+    }
+
+    private void relayout() {
+        calculate();
+        notifyDataSetChanged();
+    }
+
+    private void calculate() {
+        int count = mLineSize > 0 ? mItems.getItemCount() : 0;
+        if (mSizesInLine.length < count) {
+            mSizesInLine = new int[Math.max(count, 2 * mSizesInLine.length)];
+            mSizesAcross = new int[mSizesInLine.length];
+        }
+        for (int i = 0; i < count; i++) {
+            mSizesInLine[i] = mSizes.sizeInLine(i, mLineSize);
+            mSizesAcross[i] = mSizes.sizeAcross(i, mLineSize);
+        }
+        mCalculator.spacing(mSpacingBetweenItems, mSpacingBetweenLines).maxItemsInLine(mMaxItemsInLine)
+            .lineBreaker(mLineBreaker).explicitBreaks(mExplicitBreaks)
+            .calculate(mSizesInLine, mSizesAcross, count, mLineSize);
+    }
+
+    /**
+     * Break lines again after items changed, and notify about changed rows only:
+     * rows which end before {@param from} and, if positions didn't shift, rows which start after {@param to}
+     * and haven't changed, keep their views bound.
+     */
+    private void update(int from, int to) {
+        int oldCount = mCalculator.lineCount(), oldEnd = mCalculator.laidOutCount();
+        if (mOldStarts.length < oldCount) mOldStarts = new int[Math.max(oldCount, 2 * mOldStarts.length)];
+        for (int i = 0; i < oldCount; i++) mOldStarts[i] = mCalculator.lineStart(i);
+        calculate();
+
+        int count = mCalculator.lineCount();
+        int first = 0;
+        while (first < oldCount && first < count && mOldStarts[first] == mCalculator.lineStart(first) &&
+            (first + 1 < oldCount ? mOldStarts[first + 1] : oldEnd) == rowEnd(first) && rowEnd(first) <= from) first++;
+        int oldLast = oldCount, last = count;
+        if (to != Integer.MAX_VALUE) {
+            while (oldLast > first && last > first && mOldStarts[oldLast - 1] >= to &&
+                mOldStarts[oldLast - 1] == mCalculator.lineStart(last - 1) &&
+                (oldLast < oldCount ? mOldStarts[oldLast] : oldEnd) == rowEnd(last - 1)) {
+                oldLast--;
+                last--;
+            }
+        }
+
+        int changed = Math.min(oldLast, last) - first;
+        if (changed > 0) notifyItemRangeChanged(first, changed);
+        if (oldLast > last) notifyItemRangeRemoved(first + changed, oldLast - last);
+        else if (last > oldLast) notifyItemRangeInserted(first + changed, last - oldLast);
+    }
+
+    private final RecyclerView.AdapterDataObserver mItemsObserver = new RecyclerView.AdapterDataObserver() {
+        @Override public void onChanged() {
+            relayout();
+        }
+        @Override public void onItemRangeChanged(int positionStart, int itemCount) {
+            update(positionStart, positionStart + itemCount);
+        }
+        @Override public void onItemRangeChanged(int positionStart, int itemCount, @Nullable Object payload) {
+            update(positionStart, positionStart + itemCount);
+        }
+        @Override public void onItemRangeInserted(int positionStart, int itemCount) {
+            update(positionStart, Integer.MAX_VALUE);
+        }
+        @Override public void onItemRangeRemoved(int positionStart, int itemCount) {
+            update(positionStart, Integer.MAX_VALUE);
+        }
+        @Override public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+            update(Math.min(fromPosition, toPosition), Integer.MAX_VALUE);
+        }
+    };
+
+    private final View.OnLayoutChangeListener mWidthListener = new View.OnLayoutChangeListener() {
+        @Override public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                                             int oldLeft, int oldTop, int oldRight, int oldBottom) {
+            final int lineSize = v.getWidth() - v.getPaddingLeft() - v.getPaddingRight();
+            if (lineSize != mLineSize) v.post(new Runnable() { // not within the layout pass
+                @Override public void run() {
+                    if (mLineSize == lineSize) return;
+                    mLineSize = lineSize;
+                    relayout();
+                }
+            });
+        }
+    };
+
+    @Override public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.addOnLayoutChangeListener(mWidthListener);
+        mItems.registerAdapterDataObserver(mItemsObserver);
+        mItems.onAttachedToRecyclerView(recyclerView);
+        mLineSize = recyclerView.getWidth() - recyclerView.getPaddingLeft() - recyclerView.getPaddingRight();
+        relayout();
+    }
+    @Override public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.removeOnLayoutChangeListener(mWidthListener);
+        mItems.unregisterAdapterDataObserver(mItemsObserver);
+        mItems.onDetachedFromRecyclerView(recyclerView);
+    }
+
+    @Override public int getItemCount() {
+        return mCalculator.lineCount();
+    }
+
+    @NonNull @Override public RowHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        RowLayout row = new RowLayout(parent.getContext());
+        row.setLayoutParams(new RecyclerView.LayoutParams(
+            ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+        return new RowHolder(row);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public void onBindViewHolder(@NonNull RowHolder row, int position) {
+        RowLayout layout = (RowLayout) row.itemView;
+        ArrayList<RecyclerView.ViewHolder> holders = row.mHolders;
+        int from = mCalculator.lineStart(position), count = rowEnd(position) - from;
+
+        // keep item views of the same types in place, and pool the others
+        int kept = 0;
+        while (kept < holders.size() && kept < count &&
+            holders.get(kept).getItemViewType() == mItems.getItemViewType(from + kept)) kept++;
+        for (int i = holders.size() - 1; i >= kept; i--) {
+            RecyclerView.ViewHolder holder = holders.remove(i);
+            layout.removeViewAt(i);
+            if (row.mBound) mItems.onViewRecycled((VH) holder);
+            ArrayList<RecyclerView.ViewHolder> scrap = mScrap.get(holder.getItemViewType());
+            if (scrap == null) mScrap.put(holder.getItemViewType(), scrap = new ArrayList<>());
+            scrap.add(holder);
+        }
+        for (int i = 0; i < count; i++) {
+            RecyclerView.ViewHolder holder;
+            if (i < kept) {
+                holder = holders.get(i);
+            } else {
+                int type = mItems.getItemViewType(from + i);
+                ArrayList<RecyclerView.ViewHolder> scrap = mScrap.get(type);
+                holder = scrap == null || scrap.isEmpty()
+                    ? mItems.createViewHolder(layout, type) : scrap.remove(scrap.size() - 1);
+                holders.add(holder);
+                layout.addView(holder.itemView);
+            }
+            mItems.bindViewHolder((VH) holder, from + i);
+        }
+        row.mBound = true;
+        layout.mSpacing = mSpacingBetweenItems;
+        layout.setPadding(0, position == 0 ? 0 : mSpacingBetweenLines, 0, 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public void onViewRecycled(@NonNull RowHolder row) {
+        if (!row.mBound) return;
+        for (int i = 0; i < row.mHolders.size(); i++) mItems.onViewRecycled((VH) row.mHolders.get(i));
+        row.mBound = false;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public void onViewAttachedToWindow(@NonNull RowHolder row) {
+        for (int i = 0; i < row.mHolders.size(); i++) mItems.onViewAttachedToWindow((VH) row.mHolders.get(i));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public void onViewDetachedFromWindow(@NonNull RowHolder row) {
+        for (int i = 0; i < row.mHolders.size(); i++) mItems.onViewDetachedFromWindow((VH) row.mHolders.get(i));
+    }
+
+    /** A line: item holders, in the order of their views. */
+    public static final class RowHolder extends RecyclerView.ViewHolder {
+        final ArrayList<RecyclerView.ViewHolder> mHolders = new ArrayList<>();
+        boolean mBound;
+
+        RowHolder(@NonNull View itemView) {
+            super(itemView);
+        }
+    }
+
+    /** Lays children out in a line along the layout direction, top-aligned, honoring their margins. */
+    private static final class RowLayout extends ViewGroup {
+        int mSpacing;
+
+        RowLayout(Context context) {
+            super(context);
+        }
+
+        @Override protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+            int across = 0, unspecified = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+            for (int i = 0, count = getChildCount(); i < count; i++) {
+                View child = getChildAt(i);
+                measureChildWithMargins(child, widthMeasureSpec, 0, unspecified, 0);
+                MarginLayoutParams lp = (MarginLayoutParams) child.getLayoutParams();
+                across = Math.max(across, child.getMeasuredHeight() + lp.topMargin + lp.bottomMargin);
+            }
+            setMeasuredDimension(MeasureSpec.getSize(widthMeasureSpec), across + getPaddingTop() + getPaddingBottom());
+        }
+
+        @Override protected void onLayout(boolean changed, int l, int t, int r, int b) {
+            boolean rtl = getLayoutDirection() == LAYOUT_DIRECTION_RTL;
+            int width = r - l, start = getPaddingLeft();
+            for (int i = 0, count = getChildCount(); i < count; i++) {
+                View child = getChildAt(i);
+                MarginLayoutParams lp = (MarginLayoutParams) child.getLayoutParams();
+                int left = start + lp.leftMargin, top = getPaddingTop() + lp.topMargin;
+                int right = left + child.getMeasuredWidth();
+                if (rtl) {
+                    int mirrored = width - right;
+                    right = width - left;
+                    left = mirrored;
+                }
+                child.layout(left, top, right, top + child.getMeasuredHeight());
+                start += lp.leftMargin + child.getMeasuredWidth() + lp.rightMargin + mSpacing;
+            }
+        }
+
+        @Override public LayoutParams generateLayoutParams(AttributeSet attrs) {
+            return new MarginLayoutParams(getContext(), attrs);
+        }
+        @Override protected LayoutParams generateDefaultLayoutParams() {
+            return new MarginLayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
+        }
+        @Override protected LayoutParams generateLayoutParams(LayoutParams p) {
+            return p instanceof MarginLayoutParams ? new MarginLayoutParams((MarginLayoutParams) p) : new MarginLayoutParams(p);
+        }
+        @Override protected boolean checkLayoutParams(LayoutParams p) {
+            return p instanceof MarginLayoutParams;
+        }
+    }
+}
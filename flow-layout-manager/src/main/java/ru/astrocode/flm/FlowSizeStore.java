@@ -0,0 +1,264 @@
+package ru.astrocode.flm;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Decorated item sizes kept across app launches, so the first layout doesn't measure items shown before.
+ * Sizes are keyed by what items show, see {@link FlowLayoutManager.ContentKeys}, and by view type,
+ * font scale, density, orientation and line size: sizes measured with other settings are just not found.
+ * <p>
+ * The file is memory-mapped on the first lookup and rewritten on the executor when the main thread is idle.
+ * It holds at most {@code maxEntries} sizes, those used or measured in this session are kept first.
+ * A file of another format or version is ignored and replaced, so bump the version when item layouts change.
+ * <pre>
+ * FlowSizeStore store = new FlowSizeStore(new File(context.getCacheDir(), "chips"), BuildConfig.VERSION_CODE, 1000, executor);
+ * lm.persistentSizes(store, position -&gt; tags.get(position).hashCode());
+ * </pre>
+ * Used on the main thread only. Can be shared by layout managers showing the same kind of items.
+ */
+public final class FlowSizeStore {
+
+    private final static String ERROR_BAD_ARGUMENT = "Inappropriate field value!";
+
+    private static final int MAGIC = 0x464C4D53; // "FLMS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16; // magic, format version, version, count
+    private static final int ENTRY_SIZE = 16; // key, size
+
+    private final File mFile;
+    private final int mVersion, mMaxEntries;
+    private final Executor mExecutor;
+
+    private boolean mLoaded, mWriteScheduled;
+    private LongBuffer mEntries; // key, size, key, size... sorted by keys
+    private int mCount;
+    private boolean[] mUsed;
+    private boolean[] mChecked; // measured with wrap_content in this session and found right
+
+    private long[] mPendingKeys = new long[16], mPendingSizes = new long[16]; // measured this session, sorted by keys
+    private int mPendingCount;
+    private final MessageQueue.IdleHandler mWriter = new MessageQueue.IdleHandler() {
+        @Override public boolean queueIdle() {
+            mWriteScheduled = false;
+            write();
+            return false;
+        }
+    };
+
+    /**
+     * @param file       file to keep sizes in, e. g. in the cache directory
+     * @param version    version of item layouts, sizes stored with another one are dropped
+     * @param maxEntries max number of sizes to keep
+     * @param executor   serial executor to write the file on
+     */
+    public FlowSizeStore(@NonNull File file, int version, @IntRange(from = 1L) int maxEntries, @NonNull Executor executor) {
+        if (maxEntries < 1) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        mFile = file;
+        mVersion = version;
+        mMaxEntries = maxEntries;
+        mExecutor = executor;
+    }
+
+    /** @return part of the key which depends on settings of a layout pass rather than on items */
+    static long salt(float fontScale, int densityDpi, int orientation, int lineSize) {
+        long salt = mix(Float.floatToIntBits(fontScale) + ((long) densityDpi << 32));
+        salt = mix(salt + ((long) orientation << 32) + lineSize);
+        return salt == 0L ? 1L : salt;
+    }
+    static long key(long contentKey, int viewType, long salt) {
+        return mix(mix(contentKey + salt) + viewType);
+    }
+    /** SplitMix64 finalizer */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /** @return packed size stored for {@param key}, or {@link SizeCache#NONE} */
+    long get(long key) {
+        int i = Arrays.binarySearch(mPendingKeys, 0, mPendingCount, key);
+        if (i >= 0) return mPendingSizes[i];
+        if (!mLoaded) load();
+        i = indexOf(key);
+        if (i < 0) return SizeCache.NONE;
+        mUsed[i] = true;
+        return mEntries.get(2 * i + 1);
+    }
+
+    /** @return whether the size for {@param key} was measured or checked in this session, so it needn't be checked */
+    boolean isChecked(long key) {
+        if (Arrays.binarySearch(mPendingKeys, 0, mPendingCount, key) >= 0) return true;
+        int i = indexOf(key);
+        return i >= 0 && mChecked[i];
+    }
+    /** The size stored for {@param key} turned out to be right. */
+    void checked(long key) {
+        int i = indexOf(key);
+        if (i >= 0) mChecked[i] = true;
+    }
+
+    /** Doesn't map the file, the new size is merged with stored ones when idle. */
+    void put(long key, long size) {
+        int i = Arrays.binarySearch(mPendingKeys, 0, mPendingCount, key);
+        if (i >= 0) {
+            if (mPendingSizes[i] == size) return;
+            mPendingSizes[i] = size;
+        } else {
+            int stored = mLoaded ? indexOf(key) : -1;
+            if (stored >= 0 && mEntries.get(2 * stored + 1) == size) {
+                mUsed[stored] = true;
+                return;
+            }
+            i = ~i;
+            if (mPendingCount == mPendingKeys.length) {
+                mPendingKeys = Arrays.copyOf(mPendingKeys, mPendingCount * 2);
+                mPendingSizes = Arrays.copyOf(mPendingSizes, mPendingCount * 2);
+            }
+            System.arraycopy(mPendingKeys, i, mPendingKeys, i + 1, mPendingCount - i);
+            System.arraycopy(mPendingSizes, i, mPendingSizes, i + 1, mPendingCount - i);
+            mPendingKeys[i] = key;
+            mPendingSizes[i] = size;
+            mPendingCount++;
+        }
+        if (!mWriteScheduled) {
+            mWriteScheduled = true;
+            Looper.myQueue().addIdleHandler(mWriter);
+        }
+    }
+
+    private void load() {
+        mLoaded = true;
+        if (mFile.length() < HEADER_SIZE) return;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            FileChannel channel = file.getChannel();
+            long length = channel.size();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length); // stays valid after closing
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION || buffer.getInt(8) != mVersion) return;
+            int count = buffer.getInt(12);
+            if (count < 0 || HEADER_SIZE + (long) count * ENTRY_SIZE != length) return;
+            buffer.position(HEADER_SIZE);
+            mEntries = buffer.slice().asLongBuffer();
+            mCount = count;
+            mUsed = new boolean[count];
+            mChecked = new boolean[count];
+        } catch (IOException ignored) {
+            // it's a cache, measure as usual
+        } finally {
+            close(file);
+        }
+    }
+
+    /**
+     * Merge sizes measured in this session with the stored ones, dropping unused stored sizes over the limit,
+     * and write them in the background. Merged sizes are used from memory from now on.
+     */
+    private void write() {
+        if (mPendingCount == 0) return;
+        if (!mLoaded) load();
+        int pending = Math.min(mPendingCount, mMaxEntries);
+        boolean[] keep = new boolean[mCount];
+        int room = mMaxEntries - pending;
+        for (int pass = 0; pass < 2 && room > 0; pass++) { // used ones first
+            for (int i = 0; i < mCount && room > 0; i++) {
+                if (keep[i] || (pass == 0 && !mUsed[i])) continue;
+                if (Arrays.binarySearch(mPendingKeys, 0, mPendingCount, mEntries.get(2 * i)) >= 0) continue; // replaced
+                keep[i] = true;
+                room--;
+            }
+        }
+
+        int count = mMaxEntries - room;
+        long[] entries = new long[2 * count];
+        boolean[] used = new boolean[count], checked = new boolean[count];
+        int p = 0, s = 0;
+        for (int i = 0; i < count; i++) {
+            while (s < mCount && !keep[s]) s++;
+            if (s == mCount || (p < pending && mPendingKeys[p] < mEntries.get(2 * s))) {
+                entries[2 * i] = mPendingKeys[p];
+                entries[2 * i + 1] = mPendingSizes[p++];
+                used[i] = true;
+                checked[i] = true;
+            } else {
+                entries[2 * i] = mEntries.get(2 * s);
+                entries[2 * i + 1] = mEntries.get(2 * s + 1);
+                used[i] = mUsed[s];
+                checked[i] = mChecked[s++];
+            }
+        }
+        mEntries = LongBuffer.wrap(entries);
+        mCount = count;
+        mUsed = used;
+        mChecked = checked;
+        mPendingCount = 0;
+        mExecutor.execute(new Writer(mFile, mVersion, entries));
+    }
+
+    private int indexOf(long key) {
+        int lo = 0, hi = mCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long k = mEntries.get(2 * mid);
+            if (k < key) lo = mid + 1;
+            else if (k > key) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Writes a new file next to the old one and replaces it, so a mapped or half-written file is never read.
+     */
+    private static final class Writer implements Runnable {
+        private final File mFile;
+        private final int mVersion;
+        private final long[] mEntries;
+
+        Writer(File file, int version, long[] entries) {
+            mFile = file;
+            mVersion = version;
+            mEntries = entries;
+        }
+
+        @Override public void run() {
+            File tmp = new File(mFile.getPath() + ".tmp");
+            FileOutputStream out = null;
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + mEntries.length * (ENTRY_SIZE / 2));
+                buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(mVersion).putInt(mEntries.length / 2);
+                buffer.asLongBuffer().put(mEntries);
+                out = new FileOutputStream(tmp);
+                out.write(buffer.array());
+                out.getFD().sync();
+                out.close();
+                out = null;
+                if (!tmp.renameTo(mFile)) tmp.delete();
+            } catch (IOException e) {
+                close(out);
+                tmp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package ru.astrocode.flm;
+
+import android.view.View;
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.recyclerview.widget.SnapHelper;
+
+import static androidx.recyclerview.widget.RecyclerView.HORIZONTAL;
+
+/**
+ * Snaps {@link FlowLayoutManager} lines to the start edge.
+ * Unlike {@code LinearSnapHelper}, targets are line boundaries, not individual items:
+ * fling lands on the line predicted from velocity and known line extents,
+ * or, in paging mode, on the next or previous page made of whole lines.
+ * <pre>
+ * new FlowSnapHelper(false).attachToRecyclerView(recyclerView);
+ * </pre>
+ */
+public class FlowSnapHelper extends SnapHelper {
+
+    private final boolean mPaging;
+
+    public FlowSnapHelper() {
+        this(false);
+    }
+
+    /**
+     * @param paging fling by a page of whole lines instead of the distance the fling would travel
+     */
+    public FlowSnapHelper(boolean paging) {
+        mPaging = paging;
+    }
+
+    public boolean paging() {
+        return mPaging;
+    }
+
+    @Override public int[] calculateDistanceToFinalSnap(@NonNull RecyclerView.LayoutManager layoutManager, @NonNull View targetView) {
+        int[] out = new int[2];
+        if (layoutManager instanceof FlowLayoutManager) {
+            FlowLayoutManager lm = (FlowLayoutManager) layoutManager;
+            out[lm.orientation() == HORIZONTAL ? 0 : 1] = lm.distanceToLineStart(targetView);
+        }
+        return out;
+    }
+
+    @Override public View findSnapView(RecyclerView.LayoutManager layoutManager) {
+        return layoutManager instanceof FlowLayoutManager ? ((FlowLayoutManager) layoutManager).findSnapView() : null;
+    }
+
+    @Override public int findTargetSnapPosition(RecyclerView.LayoutManager layoutManager, int velocityX, int velocityY) {
+        if (!(layoutManager instanceof FlowLayoutManager) || layoutManager.getItemCount() == 0)
+            return RecyclerView.NO_POSITION;
+
+        FlowLayoutManager lm = (FlowLayoutManager) layoutManager;
+        boolean horizontal = lm.orientation() == HORIZONTAL;
+        int velocity = horizontal ? velocityX : velocityY;
+        if (velocity == 0) return RecyclerView.NO_POSITION;
+        if (mPaging) return lm.findPagePosition(velocity > 0);
+
+        int[] distance = calculateScrollDistance(velocityX, velocityY);
+        return lm.findSnapPosition(horizontal ? distance[0] : distance[1]);
+    }
+}
@@ -0,0 +1,46 @@
+package ru.astrocode.flm;
+
+import androidx.annotation.IntRange;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Layout states of nested {@link FlowLayoutManager}s by parent item id, e. g. of carousels in a vertical feed,
+ * so a recycled cell shows its flow as it was left: the same first line at the same offset, wrapped the same way.
+ * <pre>
+ * // in onBindViewHolder of the parent adapter, after giving the nested adapter its items
+ * holder.flowLayoutManager.stateKey(store, item.id);
+ * </pre>
+ * Keeps states of the most recently used keys. Used on the main thread only, one store per parent list.
+ */
+public final class FlowStateStore {
+
+    private final static String ERROR_BAD_ARGUMENT = "Inappropriate field value!";
+
+    private final LinkedHashMap<Long, FlowLayoutManager.SavedLayout> mStates;
+
+    /** @param maxEntries number of states to keep, the least recently used ones are dropped */
+    public FlowStateStore(@IntRange(from = 1L) final int maxEntries) {
+        if (maxEntries < 1) throw new IllegalArgumentException(ERROR_BAD_ARGUMENT);
+        mStates = new LinkedHashMap<Long, FlowLayoutManager.SavedLayout>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Long, FlowLayoutManager.SavedLayout> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    FlowLayoutManager.SavedLayout get(long key) {
+        return mStates.get(key);
+    }
+    void put(long key, FlowLayoutManager.SavedLayout state) {
+        mStates.put(key, state);
+    }
+
+    /** Forget the state of a removed parent item. */
+    public void remove(long key) {
+        mStates.remove(key);
+    }
+    public void clear() {
+        mStates.clear();
+    }
+}
@@ -0,0 +1,135 @@
+package ru.astrocode.flm;
+
+import java.util.Arrays;
+
+/**
+ * Lines which were laid out with certain line size, spacing, and maxItemsInLine:
+ * their first adapter positions, item counts, and sizes.
+ * Lines are sorted by position and don't overlap but may have gaps between them.
+ */
+final class LineBreaks {
+    static final int MAX_LAYOUTS = 4;
+
+    private int mLineSize, mSpacing, mMaxItems;
+    private int[] mStarts = new int[32], mCounts = new int[32], mExtents = new int[32];
+    private int mCount;
+
+    void reset(int lineSize, int spacing, int maxItems) {
+        mLineSize = lineSize;
+        mSpacing = spacing;
+        mMaxItems = maxItems;
+        mCount = 0;
+    }
+    boolean matches(int lineSize, int spacing, int maxItems) {
+        return mLineSize == lineSize && mSpacing == spacing && mMaxItems == maxItems;
+    }
+
+    int size() {
+        return mCount;
+    }
+    int start(int line) {
+        return mStarts[line];
+    }
+    int end(int line) {
+        return mStarts[line] + mCounts[line];
+    }
+    int count(int line) {
+        return mCounts[line];
+    }
+    int extent(int line) {
+        return mExtents[line];
+    }
+
+    /** @return index of the line containing {@param position}, or -1 */
+    int find(int position) {
+        int i = upperBound(position) - 1;
+        return i >= 0 && position < end(i) ? i : -1;
+    }
+
+    /** @return lines around the one containing {@param position}, at most {@param max} of them */
+    LineBreaks copyAround(int position, int max) {
+        LineBreaks copy = new LineBreaks();
+        copy.reset(mLineSize, mSpacing, mMaxItems);
+        int from = Math.max(0, upperBound(position) - 1 - max / 2), to = Math.min(mCount, from + max);
+        for (int i = from; i < to; i++) copy.put(mStarts[i], mCounts[i], mExtents[i]);
+        return copy;
+    }
+    LineBreaks copy() {
+        return copyAround(0, mCount);
+    }
+
+    /** @return whether a known line overlaps the given one but starts or ends elsewhere */
+    boolean conflicts(int start, int count) {
+        int i = upperBound(start) - 1;
+        if (i < 0 || end(i) <= start) i++;
+        return i < mCount && mStarts[i] < start + count && (mStarts[i] != start || mCounts[i] != count);
+    }
+
+    void put(int start, int count, int extent) {
+        if (count <= 0) return;
+        int from = upperBound(start) - 1;
+        if (from < 0 || end(from) <= start) from++;
+        int to = from;
+        while (to < mCount && mStarts[to] < start + count) to++;
+        if (from == to && mCount == mStarts.length) {
+            mStarts = Arrays.copyOf(mStarts, mCount * 2);
+            mCounts = Arrays.copyOf(mCounts, mCount * 2);
+            mExtents = Arrays.copyOf(mExtents, mCount * 2);
+        }
+        if (to != from + 1) move(to, from + 1);
+        mStarts[from] = start;
+        mCounts[from] = count;
+        mExtents[from] = extent;
+    }
+
+    /**
+     * Items were inserted. Lines touching them are forgotten (they could fit more or less items),
+     * the following ones are shifted.
+     */
+    void insert(int from, int count) {
+        int i = drop(from, from);
+        while (i < mCount) mStarts[i++] += count;
+    }
+
+    /** Items were removed. */
+    void remove(int from, int count) {
+        int i = drop(from, from + count);
+        while (i < mCount) mStarts[i++] -= count;
+    }
+
+    /** Items were changed. */
+    void invalidate(int from, int count) {
+        drop(from, from + count);
+    }
+
+    /**
+     * Forget lines which overlap or touch [from, to].
+     * @return index of the first line after them
+     */
+    private int drop(int from, int to) {
+        int first = upperBound(from) - 1;
+        if (first < 0 || end(first) < from) first++;
+        int last = first;
+        while (last < mCount && mStarts[last] <= to) last++;
+        move(last, first);
+        return first;
+    }
+
+    private void move(int from, int to) {
+        System.arraycopy(mStarts, from, mStarts, to, mCount - from);
+        System.arraycopy(mCounts, from, mCounts, to, mCount - from);
+        System.arraycopy(mExtents, from, mExtents, to, mCount - from);
+        mCount += to - from;
+    }
+
+    /** @return index of the first line which starts after {@param position} */
+    private int upperBound(int position) {
+        int lo = 0, hi = mCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mStarts[mid] <= position) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
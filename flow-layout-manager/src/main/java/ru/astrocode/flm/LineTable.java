@@ -0,0 +1,192 @@
+package ru.astrocode.flm;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Lines of the whole list: their first adapter positions and offsets from the start of the first line.
+ * Immutable, built by {@link Builder} off the main thread.
+ */
+final class LineTable {
+    private final int mLineSize, mSpacingBetweenItems, mSpacingBetweenLines, mMaxItems, mItemCount;
+    private final int mLineCount;
+    private final int[] mStarts; // lineCount + 1, the last one is itemCount
+    private final int[] mOffsets; // lineCount + 1, the last one is total extent + spacing between lines
+
+    LineTable(Builder b) {
+        mLineSize = b.mLineSize;
+        mSpacingBetweenItems = b.mSpacingBetweenItems;
+        mSpacingBetweenLines = b.mSpacingBetweenLines;
+        mMaxItems = b.mMaxItems;
+        mItemCount = b.mItemCount;
+        mLineCount = b.mLines;
+        mStarts = b.mStarts;
+        mOffsets = b.mOffsets;
+    }
+
+    /** @param itemCount item count to match, or -1 for any */
+    boolean matches(int lineSize, int betweenItems, int betweenLines, int maxItems, int itemCount) {
+        return mLineSize == lineSize && mSpacingBetweenItems == betweenItems &&
+            mSpacingBetweenLines == betweenLines && mMaxItems == maxItems && (itemCount < 0 || mItemCount == itemCount);
+    }
+
+    int itemCount() {
+        return mItemCount;
+    }
+    int lineCount() {
+        return mLineCount;
+    }
+    /** @return first adapter position of the {@param line}, or item count for the line after the last one */
+    int start(int line) {
+        return mStarts[line];
+    }
+    int offset(int line) {
+        return mOffsets[line];
+    }
+    int extent(int line) {
+        return mOffsets[line + 1] - mOffsets[line] - mSpacingBetweenLines;
+    }
+    int totalExtent() {
+        return mLineCount == 0 ? 0 : mOffsets[mLineCount] - mSpacingBetweenLines;
+    }
+
+    /** @return index of the line containing {@param position} */
+    int line(int position) {
+        int lo = 0, hi = mLineCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mStarts[mid] <= position) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Breaks items into lines by the same rules as {@link FlowLayoutManager}, a chunk per executor task,
+     * and publishes the table on the main thread. Cancelled builders stop after the current chunk.
+     */
+    static final class Builder implements Runnable {
+        private static final int CHUNK = 2048;
+
+        private final FlowLayoutManager mLayoutManager;
+        private final FlowLayoutManager.SizeProvider mProvider;
+        private final FlowLayoutManager.ExplicitBreaks mBreaks;
+        private final Executor mExecutor;
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        final int mLineSize, mSpacingBetweenItems, mSpacingBetweenLines, mMaxItems, mItemCount;
+        int[] mStarts, mOffsets;
+        int mLines;
+        private volatile boolean mCancelled;
+        private LineTable mTable;
+
+        private final LineTable mStale;
+        private final int mTailFrom, mTailShift;
+
+        /**
+         * @param keep      number of leading lines to take from {@param stale}
+         * @param tailFrom  position from which lines of {@param stale} are valid once shifted by {@param tailShift},
+         *                  or {@link Integer#MAX_VALUE}
+         */
+        Builder(FlowLayoutManager lm, FlowLayoutManager.SizeProvider provider, Executor executor,
+                int lineSize, int betweenItems, int betweenLines, int maxItems, int itemCount,
+                LineTable stale, int keep, int tailFrom, int tailShift) {
+            mLayoutManager = lm;
+            mProvider = provider;
+            mBreaks = lm.explicitBreaks();
+            mExecutor = executor;
+            mLineSize = lineSize;
+            mSpacingBetweenItems = betweenItems;
+            mSpacingBetweenLines = betweenLines;
+            mMaxItems = maxItems;
+            mItemCount = itemCount;
+            int capacity = Math.max(keep + 1, 64);
+            mStarts = new int[capacity];
+            mOffsets = new int[capacity];
+            if (keep > 0) {
+                System.arraycopy(stale.mStarts, 0, mStarts, 0, keep + 1);
+                System.arraycopy(stale.mOffsets, 0, mOffsets, 0, keep + 1);
+                mLines = keep;
+            }
+            boolean tail = stale != null && tailFrom != Integer.MAX_VALUE && stale.mItemCount + tailShift == itemCount;
+            mStale = tail ? stale : null;
+            mTailFrom = tail ? tailFrom : Integer.MAX_VALUE;
+            mTailShift = tailShift;
+        }
+
+        boolean matches(int lineSize, int betweenItems, int betweenLines, int maxItems, int itemCount) {
+            return mLineSize == lineSize && mSpacingBetweenItems == betweenItems &&
+                mSpacingBetweenLines == betweenLines && mMaxItems == maxItems && mItemCount == itemCount;
+        }
+
+        void start() {
+            mExecutor.execute(this);
+        }
+        void cancel() {
+            mCancelled = true;
+        }
+
+        @Override public void run() {
+            if (mTable != null) { // on the main thread
+                mLayoutManager.onLineTableBuilt(this, mTable);
+                return;
+            }
+            if (mCancelled) return;
+
+            Trace.beginSection("FLM#LineTable.Builder");
+            int position = mStarts[mLines], offset = mOffsets[mLines];
+            for (int end = Math.min(mItemCount, position + CHUNK); position < end; ) {
+                int lineStart = position, currentLineSize = 0, extent = 0;
+                while (position - lineStart != mMaxItems && position < mItemCount &&
+                    (position == lineStart || mBreaks == null || !mBreaks.isLineStart(position))) {
+                    int size = mProvider.sizeInLine(position, mLineSize);
+                    if (!FlowLayoutManager.fits(currentLineSize, size, mLineSize)) break;
+                    currentLineSize += size + mSpacingBetweenItems;
+                    extent = Math.max(extent, mProvider.sizeAcross(position, mLineSize));
+                    position++;
+                }
+                if (++mLines == mStarts.length) {
+                    mStarts = Arrays.copyOf(mStarts, mLines * 2);
+                    mOffsets = Arrays.copyOf(mOffsets, mLines * 2);
+                }
+                mStarts[mLines] = position;
+                mOffsets[mLines] = offset += extent + mSpacingBetweenLines;
+                if (position >= mTailFrom && position < mItemCount && resume(position, offset)) {
+                    position = mItemCount;
+                    break;
+                }
+            }
+            Trace.endSection();
+
+            if (mCancelled) return;
+            if (position < mItemCount) {
+                mExecutor.execute(this); // let other tasks run in between
+            } else {
+                mTable = new LineTable(this);
+                mMainHandler.post(this);
+            }
+        }
+
+        /**
+         * If a stale line starts at {@param position} too, the rest breaks the same way: take it shifted.
+         * @return whether the table is complete
+         */
+        private boolean resume(int position, int offset) {
+            int old = position - mTailShift, line = mStale.line(old);
+            if (mStale.mStarts[line] != old) return false;
+            int count = mStale.mLineCount - line, delta = offset - mStale.mOffsets[line];
+            if (mLines + count >= mStarts.length) {
+                mStarts = Arrays.copyOf(mStarts, mLines + count + 1);
+                mOffsets = Arrays.copyOf(mOffsets, mLines + count + 1);
+            }
+            for (int i = 1; i <= count; i++) {
+                mStarts[mLines + i] = mStale.mStarts[line + i] + mTailShift;
+                mOffsets[mLines + i] = mStale.mOffsets[line + i] + delta;
+            }
+            mLines += count;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package ru.astrocode.flm;
+
+import android.util.SparseArray;
+import java.util.ArrayList;
+
+/**
+ * Decorated item sizes (including margins) by adapter position,
+ * and their per-view-type averages to estimate items which were never measured.
+ * Sizes depend on line size, so they are kept for a few recent line sizes, and switching back finds them.
+ */
+final class SizeCache {
+    static final long NONE = Long.MIN_VALUE;
+    static final int MAX_LINE_SIZES = 4;
+
+    private final ArrayList<Sizes> mAll = new ArrayList<>(MAX_LINE_SIZES); // most recent first
+    private Sizes mSizes = new Sizes();
+
+    SizeCache() {
+        mAll.add(mSizes);
+    }
+
+    static long pack(int width, int height) {
+        return ((long) width << 32) | (height & 0xFFFFFFFFL);
+    }
+    static int width(long size) {
+        return (int) (size >>> 32);
+    }
+    static int height(long size) {
+        return (int) size;
+    }
+
+    void ensureLineSize(int lineSize) {
+        if (mSizes.mLineSize == lineSize) return;
+        Sizes sizes = null;
+        for (int i = 1, size = mAll.size(); i < size; i++) {
+            if (mAll.get(i).mLineSize == lineSize) {
+                sizes = mAll.remove(i);
+                break;
+            }
+        }
+        if (sizes == null) {
+            sizes = mAll.size() == MAX_LINE_SIZES ? mAll.remove(MAX_LINE_SIZES - 1) : new Sizes();
+            sizes.clear();
+            sizes.mLineSize = lineSize;
+        }
+        mAll.add(0, sizes);
+        mSizes = sizes;
+    }
+
+    long get(int position) {
+        int i = mSizes.indexOf(position);
+        return i >= 0 ? mSizes.mSizes[i] : NONE;
+    }
+
+    long estimate(int viewType) {
+        long[] sums = mSizes.mTypeSums.get(viewType);
+        return sums == null ? NONE : pack((int) (sums[0] / sums[2]), (int) (sums[1] / sums[2]));
+    }
+
+    void put(int position, int viewType, int width, int height) {
+        mSizes.put(position, viewType, width, height);
+    }
+
+    /** Items were inserted, shift the following ones. */
+    void insert(int from, int count) {
+        for (int i = 0, size = mAll.size(); i < size; i++) mAll.get(i).insert(from, count);
+    }
+
+    /** Items were removed, forget them and shift the following ones. */
+    void remove(int from, int count) {
+        for (int i = 0, size = mAll.size(); i < size; i++) mAll.get(i).remove(from, count);
+    }
+
+    /** Items were changed, forget their sizes. */
+    void invalidate(int from, int count) {
+        remove(from, count);
+        insert(from, count);
+    }
+
+    void clear() {
+        for (int i = 0, size = mAll.size(); i < size; i++) mAll.get(i).clear();
+    }
+
+    /**
+     * Sizes measured with one line size, see {@link SizeCache}.
+     */
+    private static final class Sizes {
+        int mLineSize = -1;
+        int[] mPositions = new int[32];
+        long[] mSizes = new long[32];
+        int mCount;
+        final SparseArray<long[]> mTypeSums = new SparseArray<>(); // {width, height, count}
+
+        void put(int position, int viewType, int width, int height) {
+            long[] sums = mTypeSums.get(viewType);
+            if (sums == null) mTypeSums.put(viewType, sums = new long[3]);
+            sums[0] += width;
+            sums[1] += height;
+            sums[2]++;
+
+            int i = indexOf(position);
+            if (i >= 0) {
+                mSizes[i] = SizeCache.pack(width, height);
+                return;
+            }
+            i = ~i;
+            if (mCount == mPositions.length) {
+                int[] positions = new int[mCount * 2];
+                long[] sizes = new long[mCount * 2];
+                System.arraycopy(mPositions, 0, positions, 0, mCount);
+                System.arraycopy(mSizes, 0, sizes, 0, mCount);
+                mPositions = positions;
+                mSizes = sizes;
+            }
+            System.arraycopy(mPositions, i, mPositions, i + 1, mCount - i);
+            System.arraycopy(mSizes, i, mSizes, i + 1, mCount - i);
+            mPositions[i] = position;
+            mSizes[i] = SizeCache.pack(width, height);
+            mCount++;
+        }
+
+        void insert(int from, int count) {
+            for (int i = lowerBound(from); i < mCount; i++) mPositions[i] += count;
+        }
+
+        void remove(int from, int count) {
+            int start = lowerBound(from), end = lowerBound(from + count);
+            System.arraycopy(mPositions, end, mPositions, start, mCount - end);
+            System.arraycopy(mSizes, end, mSizes, start, mCount - end);
+            mCount -= end - start;
+            for (int i = start; i < mCount; i++) mPositions[i] -= count;
+        }
+
+        void clear() {
+            mCount = 0;
+            mTypeSums.clear();
+        }
+
+        int indexOf(int position) {
+            int lo = 0, hi = mCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int p = mPositions[mid];
+                if (p < position) lo = mid + 1;
+                else if (p > position) hi = mid - 1;
+                else return mid;
+            }
+            return ~lo;
+        }
+        private int lowerBound(int position) {
+            int i = indexOf(position);
+            return i >= 0 ? i : ~i;
+        }
+    }
+}
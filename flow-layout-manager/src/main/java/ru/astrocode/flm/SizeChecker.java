@@ -0,0 +1,19 @@
+package ru.astrocode.flm;
+
+import android.os.MessageQueue;
+
+/**
+ * Checks sizes of views measured to sizes from {@link FlowSizeStore} while the main thread is idle.
+ */
+final class SizeChecker implements MessageQueue.IdleHandler {
+    private final FlowLayoutManager mLayoutManager;
+
+    SizeChecker(FlowLayoutManager lm) {
+        mLayoutManager = lm;
+    }
+
+    @Override public boolean queueIdle() {
+        mLayoutManager.checkStoredSizes();
+        return false;
+    }
+}
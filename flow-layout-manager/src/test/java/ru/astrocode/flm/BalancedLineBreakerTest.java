@@ -0,0 +1,75 @@
+package ru.astrocode.flm;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link BalancedLineBreaker} in {@link FlowCalculator}: lines fit, and work per line stays within the cap.
+ * See {@link LineBreakerBenchmark} for timings.
+ */
+public class BalancedLineBreakerTest {
+
+    private static final int ITEMS = 20_000;
+    private static final int LINE_SIZE = 1080, SPACING = 16;
+
+    @Test public void balancedLinesFit() {
+        int[] sizes = sizes(new Random(1), 40, 400);
+        FlowCalculator greedy = calculator(FlowLayoutManager.LineBreaker.GREEDY, SPACING).calculate(sizes, sizes, ITEMS, LINE_SIZE);
+        FlowCalculator balanced = calculator(new BalancedLineBreaker(), SPACING).calculate(sizes, sizes, ITEMS, LINE_SIZE);
+
+        assertEquals(ITEMS, balanced.laidOutCount());
+        assertTrue(balanced.lineCount() >= greedy.lineCount());
+        for (int line = 0, count = balanced.lineCount(); line < count; line++) {
+            int end = line + 1 < count ? balanced.lineStart(line + 1) : ITEMS;
+            int lineSize = -SPACING;
+            for (int i = balanced.lineStart(line); i < end; i++) lineSize += sizes[i] + SPACING;
+            assertTrue("line " + line, end - balanced.lineStart(line) == 1 || lineSize <= LINE_SIZE);
+        }
+    }
+
+    @Test public void workIsCapped() {
+        Random random = new Random(2);
+        assertCapped(sizes(random, 40, 400), SPACING); // chips
+        assertCapped(sizes(random, 1, 3), 0); // dots, hundreds of items per line, the cap kicks in
+    }
+
+    private static void assertCapped(int[] sizes, int spacing) {
+        CappedBreaker breaker = new CappedBreaker();
+        calculator(breaker, spacing).calculate(sizes, sizes, ITEMS, LINE_SIZE);
+        assertTrue(breaker.mCalls > 0);
+    }
+
+    /** Checks DP steps of every call against the budget for the items it was given. */
+    private static final class CappedBreaker implements FlowLayoutManager.LineBreaker {
+        private final BalancedLineBreaker mBreaker = new BalancedLineBreaker();
+        int mCalls;
+
+        @Override public int lookahead() {
+            return mBreaker.lookahead();
+        }
+        @Override public int breakLine(int[] sizes, int from, int to, boolean last, int lineSize, int spacing, int maxItems) {
+            int items = mBreaker.breakLine(sizes, from, to, last, lineSize, spacing, maxItems);
+            assertTrue(mBreaker.mSteps + " steps for " + (to - from) + " items",
+                mBreaker.mSteps <= BalancedLineBreaker.BUDGET_PER_ITEM * (to - from));
+            mCalls++;
+            return items;
+        }
+    }
+
+    static FlowCalculator calculator(FlowLayoutManager.LineBreaker breaker, int spacing) {
+        return new FlowCalculator().spacing(spacing, spacing).lineBreaker(breaker);
+    }
+
+    static int[] sizes(Random random, int min, int max) {
+        return sizes(random, min, max, ITEMS);
+    }
+    static int[] sizes(Random random, int min, int max, int count) {
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) sizes[i] = min + random.nextInt(max - min + 1);
+        return sizes;
+    }
+}
@@ -0,0 +1,44 @@
+package ru.astrocode.flm;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Time per line of greedy and {@link BalancedLineBreaker} breaking in {@link FlowCalculator}, on the JVM.
+ * Not a part of the test suite: remove {@link Ignore} locally and run
+ * {@code ./gradlew :flow-layout-manager:testDebugUnitTest --tests '*LineBreakerBenchmark*' -i}.
+ */
+@Ignore("benchmark, run manually")
+public class LineBreakerBenchmark {
+
+    private static final int ITEMS = 200_000;
+    private static final int LINE_SIZE = 1080, SPACING = 16;
+    private static final int RUNS = 7;
+
+    @Test public void greedyVsBalanced() {
+        Random random = new Random(2);
+        report("chips", BalancedLineBreakerTest.sizes(random, 40, 400, ITEMS), SPACING);
+        report("dots", BalancedLineBreakerTest.sizes(random, 1, 3, ITEMS), 0);
+    }
+
+    private static void report(String name, int[] sizes, int spacing) {
+        FlowCalculator greedy = BalancedLineBreakerTest.calculator(FlowLayoutManager.LineBreaker.GREEDY, spacing);
+        FlowCalculator balanced = BalancedLineBreakerTest.calculator(new BalancedLineBreaker(), spacing);
+        double greedyNanos = nanosPerLine(greedy, sizes), balancedNanos = nanosPerLine(balanced, sizes);
+        System.out.printf("%s: greedy %.1f ns/line, balanced %.1f ns/line, %.0fx (%d, %d lines)%n",
+            name, greedyNanos, balancedNanos, balancedNanos / greedyNanos, greedy.lineCount(), balanced.lineCount());
+    }
+
+    /** @return best time of several runs, the first ones warm up JIT */
+    private static double nanosPerLine(FlowCalculator calculator, int[] sizes) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            calculator.calculate(sizes, sizes, ITEMS, LINE_SIZE);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) best / calculator.lineCount();
+    }
+}